@@ -21,18 +21,25 @@
  */
 package com.dumptruckman.minecraft.util;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.FileHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * The Multiverse debug-logger.
@@ -40,11 +47,51 @@ import java.util.logging.Logger;
 public class DebugLog {
 
     static final int ORIGINAL_DEBUG_LEVEL = 0;
+    static final Mode ORIGINAL_MODE = Mode.FILE;
+
+    /**
+     * How the debug log file is written.
+     */
+    public enum Mode {
+        /**
+         * This debug log owns its file through a {@link FileHandler} written on its own thread.  Logging never waits
+         * for the writer thread; records it falls behind on are dropped and the file says how many.
+         */
+        FILE,
+        /**
+         * The file is written by a single writer thread shared by every debug log in the process, including those of
+         * other plugins shading this library.
+         */
+        SHARED,
+        /**
+         * Like {@link #FILE} but also writes a side index of time and level so that {@link DebugLogIndex} can find
+         * records without scanning the whole file.
+         */
+        INDEXED,
+        /**
+         * Records are encoded into an off-heap arena on the logging thread and written from there by a thread of this
+         * debug log's own, keeping queued records off the heap.  See {@link StagedFileHandler}.
+         */
+        STAGED,
+        /**
+         * Like {@link #FILE} but gzip compressed, written to the file name with {@link #COMPRESSED_EXTENSION} appended.
+         * The compressor is flushed after every batch the writer thread writes, so the file can be read by standard
+         * tools up to the last batch even if the process dies.
+         */
+        COMPRESSED
+    }
+
+    /**
+     * Appended to the file name in {@link Mode#COMPRESSED} mode.
+     */
+    public static final String COMPRESSED_EXTENSION = ".gz";
+    static final int COMPRESSED_BUFFER_SIZE = 64 * 1024;
 
     private static String loggerName = null;
     private static String fileName = null;
 
     static volatile int debugLevel = ORIGINAL_DEBUG_LEVEL;
+    static volatile Mode mode = ORIGINAL_MODE;
 
     /**
      * Initializes the {@link DebugLog} the first time this is called with the information passed in.  The DebugLog must be
@@ -67,6 +114,7 @@ public class DebugLog {
         loggerName = null;
         fileName = null;
         debugLevel = ORIGINAL_DEBUG_LEVEL;
+        mode = ORIGINAL_MODE;
     }
 
     /**
@@ -87,29 +135,84 @@ public class DebugLog {
         return fileName;
     }
 
+    /**
+     * Sets the debug level without opening or closing the debug log.  {@link Logging#setDebugLevel(int)} should
+     * usually be used instead.
+     *
+     * @param debugLevel 0 = off, 1-3 = debug level
+     */
     public static void setDebugLevel(final int debugLevel) {
         DebugLog.debugLevel = debugLevel;
+        // A new level starts at full detail, as a new time budget does.
+        Logging.THROTTLE.restore();
+        // Logging decides what to do with each level from a table built from this.
+        Logging.updateLevelActions();
     }
 
     public static int getDebugLevel() {
         return debugLevel;
     }
 
+    /**
+     * Sets how the debug log file is written.  Takes effect the next time the debug log is opened.
+     *
+     * @param mode The new mode.
+     */
+    public static void setMode(final Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode may not be null!");
+        }
+        DebugLog.mode = mode;
+    }
+
+    /**
+     * Returns how the debug log file is written.
+     *
+     * @return how the debug log file is written.
+     */
+    public static Mode getMode() {
+        return mode;
+    }
+
     private static DebugLog instance = null;
+    /**
+     * Guards opening the debug log, which happens on the logging path.
+     */
+    private static final ReentrantLock OPEN_LOCK = new ReentrantLock();
 
     /**
      * Retrieves the open instance of DebugLog if one has already open or will open one and return it if not.
      *
      * @return The static instance of DebugLog.
      */
-    public static synchronized DebugLog getDebugLogger() {
-        if (instance == null) {
-            if (loggerName == null) {
-                throw new IllegalStateException("DebugLog has not been initialized!");
+    public static DebugLog getDebugLogger() {
+        OPEN_LOCK.lock();
+        try {
+            final String loggerName;
+            final String fileName;
+            synchronized (DebugLog.class) {
+                if (instance != null) {
+                    return instance;
+                }
+                if (DebugLog.loggerName == null) {
+                    throw new IllegalStateException("DebugLog has not been initialized!");
+                }
+                loggerName = DebugLog.loggerName;
+                fileName = DebugLog.fileName;
+            }
+            final DebugLog debugLog = new DebugLog(loggerName, fileName);
+            synchronized (DebugLog.class) {
+                // Shut down or reinitialized while opening.
+                if (DebugLog.loggerName == loggerName && DebugLog.fileName == fileName) {
+                    instance = debugLog;
+                    return debugLog;
+                }
             }
-            instance = new DebugLog(loggerName, fileName);
+            debugLog.close();
+            throw new IllegalStateException("DebugLog was shut down while opening!");
+        } finally {
+            OPEN_LOCK.unlock();
         }
-        return instance;
     }
 
     /**
@@ -122,25 +225,69 @@ public class DebugLog {
     }
 
     /**
-     * The FileHandler for file logging purposes.
+     * The FileHandler for file logging purposes.  Opened by the writer thread when the first record arrives and null
+     * until then.  Only used in {@link Mode#FILE} mode.
      */
-    protected final FileHandler fileHandler;
+    protected volatile FileHandler fileHandler;
+    /**
+     * The handler attached to {@link #log} that writes the file.
+     */
+    protected final Handler handler;
     /**
      * The Logger associated with this DebugLog.
      */
     protected final Logger log;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     /**
-     * Creates a new debug logger.
+     * Creates a new debug logger.  The file itself is opened off the calling thread.
      *
      * @param logger The name of the logger.
      * @param file   The file to log to.
      */
     protected DebugLog(final String logger, final String file) {
         log = Logger.getLogger(logger);
-        FileHandler fh = null;
+        Handler h = null;
         try {
-            fh = new FileHandler(file, true);
+            if (mode == Mode.SHARED) {
+                h = new SharedDebugWriter.FileHandle(file);
+                h.setFormatter(new LogFormatter());
+            } else if (mode == Mode.STAGED) {
+                h = new StagedFileHandler(logger + "-Debug", file);
+                h.setFormatter(new LogFormatter());
+            } else if (mode == Mode.COMPRESSED) {
+                h = new LogSink(logger + "-Debug", new Callable<Handler>() {
+                    @Override
+                    public Handler call() throws IOException {
+                        // A sync flush ends each batch on a byte boundary a decompressor can read up to.
+                        final OutputStream out = new GZIPOutputStream(
+                                new FileOutputStream(file + COMPRESSED_EXTENSION, true), COMPRESSED_BUFFER_SIZE, true);
+                        final StreamHandler compressed = new StreamHandler(out, new LogFormatter());
+                        compressed.setEncoding("UTF-8");
+                        compressed.setLevel(Level.ALL);
+                        return compressed;
+                    }
+                }, LogSink.DEFAULT_CAPACITY);
+            } else if (mode == Mode.INDEXED) {
+                h = new LogSink(logger + "-Debug", new Callable<Handler>() {
+                    @Override
+                    public Handler call() throws IOException {
+                        final Handler indexed = new IndexedFileHandler(file);
+                        indexed.setFormatter(new LogFormatter());
+                        return indexed;
+                    }
+                }, LogSink.DEFAULT_CAPACITY);
+            } else {
+                h = new LogSink(logger + "-Debug", new Callable<Handler>() {
+                    @Override
+                    public Handler call() throws IOException {
+                        final FileHandler fh = new FileHandler(file, true);
+                        fh.setFormatter(new LogFormatter());
+                        fileHandler = fh;
+                        return fh;
+                    }
+                }, LogSink.DEFAULT_CAPACITY);
+            }
             log.setUseParentHandlers(false);
             Set<Handler> toRemove = new HashSet<Handler>(log.getHandlers().length);
             for (Handler handler : log.getHandlers()) {
@@ -149,19 +296,22 @@ public class DebugLog {
             for (Handler handler : toRemove) {
                 log.removeHandler(handler);
             }
-            log.addHandler(fh);
+            log.addHandler(h);
             log.setLevel(Level.ALL);
-            fh.setFormatter(new LogFormatter());
         } catch (SecurityException e) {
             e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        if (fh != null) {
-            fileHandler = fh;
-        } else {
-            fileHandler = fh;
         }
+        handler = h;
+    }
+
+    /**
+     * Returns the handler that writes the file.  In {@link Mode#STAGED} mode this is a {@link StagedFileHandler}
+     * reporting the size and use of its arena.
+     *
+     * @return the handler that writes the file.
+     */
+    public Handler getHandler() {
+        return handler;
     }
 
     public void log(final LogRecord record) {
@@ -181,8 +331,10 @@ public class DebugLog {
     /**
      * Our log-{@link java.util.logging.Formatter}.
      */
-    private static class LogFormatter extends Formatter {
-        private final SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    static class LogFormatter extends Formatter {
+        static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+        private final SimpleDateFormat date = new SimpleDateFormat(DATE_FORMAT);
 
         @Override
         public String format(final LogRecord record) {
@@ -207,11 +359,21 @@ public class DebugLog {
     }
 
     /**
-     * Closes this {@link DebugLog}.
+     * Closes this {@link DebugLog}.  Waits for the file to be written out without holding a monitor.
      */
-    public synchronized void close() {
-        log.removeHandler(fileHandler);
-        fileHandler.close();
-        instance = null;
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (handler != null) {
+            log.removeHandler(handler);
+            handler.close();
+        }
+        synchronized (DebugLog.class) {
+            // A newer debug log may already have replaced this one.
+            if (instance == this) {
+                instance = null;
+            }
+        }
     }
 }
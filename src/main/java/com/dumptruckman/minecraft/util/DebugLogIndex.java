@@ -0,0 +1,284 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Reads the side index written next to a debug log in {@link DebugLog.Mode#INDEXED} mode and uses it to find records
+ * by time and level without scanning the whole log.
+ *
+ * The index is a sequence of fixed size entries, one per block of the log.  A block ends after
+ * {@link #RECORDS_PER_BLOCK} records or once a record is {@link #MILLIS_PER_BLOCK} newer than the block's first.  Each
+ * entry holds the block's byte range, the time of its first and last record and a bitmap of the levels it contains.
+ * Parts of the log no entry covers, such as anything written before indexing was enabled or after the last flush
+ * before a crash, are always read.
+ *
+ * Can be run from the command line:
+ * {@code java -cp Logging.jar com.dumptruckman.minecraft.util.DebugLogIndex debug.log "2012-01-01 12:00:00"
+ * "2012-01-01 12:00:30" [LEVEL]}
+ */
+public class DebugLogIndex {
+
+    /**
+     * Appended to the log file's name to name its index.
+     */
+    public static final String EXTENSION = ".idx";
+    /**
+     * The layout of a record's first line in the log, as written by {@link DebugLog.LogFormatter}.
+     */
+    public static final String DATE_FORMAT = DebugLog.LogFormatter.DATE_FORMAT;
+
+    static final int RECORDS_PER_BLOCK = 256;
+    static final long MILLIS_PER_BLOCK = 1000L;
+    /**
+     * start, end, first millis, last millis, level bitmap, record count.
+     */
+    static final int ENTRY_SIZE = 8 + 8 + 8 + 8 + 4 + 4;
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final Level[] LEVELS = {
+            Level.FINEST, Level.FINER, Level.FINE, Level.CONFIG, Level.INFO, Level.WARNING, Level.SEVERE
+    };
+    private static final int READ_SIZE = 64 * 1024;
+
+    /**
+     * Returns the bit standing for a level in an entry's level bitmap.  Levels between the standard ones share the
+     * bit of the next lower standard level.
+     *
+     * @param level The level.
+     * @return the level's bit.
+     */
+    static int levelBit(final Level level) {
+        final int value = level.intValue();
+        int bit = 0;
+        for (int i = 1; i < LEVELS.length && value >= LEVELS[i].intValue(); i++) {
+            bit = i;
+        }
+        return 1 << bit;
+    }
+
+    /**
+     * Returns the bitmap matching every level at or above the given one.
+     *
+     * @param level The minimum level.
+     * @return the bitmap.
+     */
+    static int levelMask(final Level level) {
+        return ~(levelBit(level) - 1);
+    }
+
+    private final File log;
+    private final List<long[]> entries = new ArrayList<long[]>();
+
+    /**
+     * Loads the index of a debug log.  A missing index is the same as an empty one.
+     *
+     * @param log The debug log file.
+     * @throws IOException if the index cannot be read.
+     */
+    public DebugLogIndex(final File log) throws IOException {
+        this.log = log;
+        final File index = new File(log.getPath() + EXTENSION);
+        if (!index.exists()) {
+            return;
+        }
+        final FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.READ);
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() / ENTRY_SIZE * ENTRY_SIZE));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) { }
+            ((Buffer) buffer).flip();
+            while (buffer.remaining() >= ENTRY_SIZE) {
+                entries.add(new long[] {
+                        buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                        buffer.getInt(), buffer.getInt()
+                });
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the number of indexed blocks.
+     *
+     * @return the number of indexed blocks.
+     */
+    public int getBlockCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the records logged within a time range at or above a level, in the order they were written.  Only the
+     * blocks that can hold a match are read.
+     *
+     * @param from     The earliest time, in milliseconds since the epoch.  Compared at the log's resolution of a
+     *                 second.
+     * @param to       The latest time, in milliseconds since the epoch.
+     * @param minLevel The lowest level to return.  Records whose level can not be read back are always returned.
+     * @return the matching records, each with any stack trace that followed it.
+     * @throws IOException if the log cannot be read.
+     */
+    public List<String> query(final long from, final long to, final Level minLevel) throws IOException {
+        final long fromSecond = from - (from % 1000L);
+        final int mask = levelMask(minLevel);
+        final List<String> results = new ArrayList<String>();
+        final SimpleDateFormat date = new SimpleDateFormat(DATE_FORMAT);
+        final FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            long covered = 0L;
+            for (long[] entry : entries) {
+                final long start = entry[0];
+                final long end = Math.min(entry[1], size);
+                if (start > covered) {
+                    scan(channel, covered, start, fromSecond, to, minLevel, date, results);
+                }
+                final long firstSecond = entry[2] - (entry[2] % 1000L);
+                if (start < end && entry[3] >= fromSecond && firstSecond <= to && (entry[4] & mask) != 0) {
+                    scan(channel, start, end, fromSecond, to, minLevel, date, results);
+                }
+                covered = Math.max(covered, end);
+            }
+            if (covered < size) {
+                scan(channel, covered, size, fromSecond, to, minLevel, date, results);
+            }
+        } finally {
+            channel.close();
+        }
+        return results;
+    }
+
+    private void scan(final FileChannel channel, final long start, final long end, final long from, final long to,
+                      final Level minLevel, final SimpleDateFormat date, final List<String> results)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_SIZE, end - start));
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        final Scan scan = new Scan(from, to, minLevel, date, results);
+        long position = start;
+        while (position < end) {
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), end - position));
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            ((Buffer) buffer).flip();
+            while (buffer.hasRemaining()) {
+                final byte b = buffer.get();
+                if (b == '\n') {
+                    // A newline byte never occurs inside a multi-byte UTF-8 character.
+                    scan.line(new String(line.toByteArray(), CHARSET));
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+        }
+        if (line.size() > 0) {
+            scan.line(new String(line.toByteArray(), CHARSET));
+        }
+        scan.end();
+    }
+
+    /**
+     * Groups lines into records and keeps the matching ones.
+     */
+    private static class Scan {
+
+        private final long from;
+        private final long to;
+        private final Level minLevel;
+        private final SimpleDateFormat date;
+        private final List<String> results;
+        private StringBuilder record = null;
+        private boolean matches = false;
+
+        Scan(final long from, final long to, final Level minLevel, final SimpleDateFormat date,
+             final List<String> results) {
+            this.from = from;
+            this.to = to;
+            this.minLevel = minLevel;
+            this.date = date;
+            this.results = results;
+        }
+
+        void line(final String line) {
+            final long millis = parseMillis(line, date);
+            if (millis == Long.MIN_VALUE) {
+                // A stack trace line belongs to the record before it.
+                if (record != null) {
+                    record.append('\n').append(line);
+                }
+                return;
+            }
+            end();
+            record = new StringBuilder(line);
+            matches = millis >= from && millis <= to && isAtLeast(line, minLevel);
+        }
+
+        void end() {
+            if (record != null && matches) {
+                results.add(record.toString());
+            }
+            record = null;
+        }
+    }
+
+    private static long parseMillis(final String line, final SimpleDateFormat date) {
+        if (line.length() < DATE_FORMAT.length() + 2 || line.charAt(DATE_FORMAT.length() + 1) != '[') {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return date.parse(line.substring(0, DATE_FORMAT.length())).getTime();
+        } catch (ParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static boolean isAtLeast(final String line, final Level minLevel) {
+        final int start = DATE_FORMAT.length() + 2;
+        final int end = line.indexOf(']', start);
+        if (end < 0) {
+            return true;
+        }
+        try {
+            return Level.parse(line.substring(start, end)).intValue() >= minLevel.intValue();
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Prints the records of a debug log within a time range and optionally at or above a level.
+     *
+     * @param args The log file, the start and end of the range as {@value #DATE_FORMAT} and optionally a level.
+     * @throws Exception if the log or its index cannot be read.
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: DebugLogIndex <debug.log> <from> <to> [level]  (times as " + DATE_FORMAT + ")");
+            System.exit(1);
+        }
+        final SimpleDateFormat date = new SimpleDateFormat(DATE_FORMAT);
+        final Level level = args.length > 3 ? Level.parse(args[3]) : Level.ALL;
+        final DebugLogIndex index = new DebugLogIndex(new File(args[0]));
+        for (String record : index.query(date.parse(args[1]).getTime(), date.parse(args[2]).getTime(), level)) {
+            System.out.println(record);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Writes a debug log file together with the side index read by {@link DebugLogIndex}.
+ *
+ * Not thread safe; meant to be written by a single {@link LogSink} thread.  The log is always flushed before the
+ * index so an index entry never points past the data on disk.
+ */
+class IndexedFileHandler extends Handler {
+
+    private final OutputStream out;
+    private final OutputStream index;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream entries = new DataOutputStream(pending);
+    private long position;
+
+    private long blockStart;
+    private long firstMillis;
+    private long lastMillis;
+    private int levels;
+    private int records = 0;
+
+    /**
+     * Opens the log and its index for appending.
+     *
+     * @param file The log file.
+     * @throws IOException if either file cannot be opened.
+     */
+    IndexedFileHandler(final String file) throws IOException {
+        final File log = new File(file);
+        position = log.length();
+        out = new BufferedOutputStream(new FileOutputStream(log, true));
+        index = new FileOutputStream(file + DebugLogIndex.EXTENSION, true);
+    }
+
+    @Override
+    public void publish(final LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        final byte[] bytes = getFormatter().format(record).getBytes(DebugLogIndex.CHARSET);
+        try {
+            out.write(bytes);
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.WRITE_FAILURE);
+            return;
+        }
+        final long millis = record.getMillis();
+        if (records == 0) {
+            blockStart = position;
+            firstMillis = millis;
+            lastMillis = millis;
+        }
+        position += bytes.length;
+        // Records from different threads can reach the writer out of time order.
+        firstMillis = Math.min(firstMillis, millis);
+        lastMillis = Math.max(lastMillis, millis);
+        levels |= DebugLogIndex.levelBit(record.getLevel());
+        records++;
+        if (records >= DebugLogIndex.RECORDS_PER_BLOCK || millis - firstMillis >= DebugLogIndex.MILLIS_PER_BLOCK) {
+            endBlock();
+        }
+    }
+
+    private void endBlock() {
+        if (records == 0) {
+            return;
+        }
+        try {
+            entries.writeLong(blockStart);
+            entries.writeLong(position);
+            entries.writeLong(firstMillis);
+            entries.writeLong(lastMillis);
+            entries.writeInt(levels);
+            entries.writeInt(records);
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.WRITE_FAILURE);
+        }
+        levels = 0;
+        records = 0;
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.flush();
+            // Entries are held back until the data they cover is out.
+            pending.writeTo(index);
+            pending.reset();
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.FLUSH_FAILURE);
+        }
+    }
+
+    @Override
+    public void close() {
+        endBlock();
+        flush();
+        try {
+            out.close();
+            index.close();
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.util.logging.Level;
+
+/**
+ * What {@link Logging} does with a record of each level, worked out ahead of time for one debug level and
+ * {@link Logging#isShowingConfig()} setting so that classifying a record is a single array lookup.
+ *
+ * Levels are bucketed by hundreds of {@link Level#intValue()}, so custom levels are treated like the standard level
+ * at or below them: a level of 450 acts like {@link Level#FINER}, one of 650 like {@link Level#FINE}.  Anything below
+ * {@link Level#FINER} acts like {@link Level#FINEST} and anything from {@link Level#INFO} up is passed through.
+ */
+class LevelActions {
+
+    /**
+     * The record is not logged.
+     */
+    static final byte DROP = 0;
+    /**
+     * The record is logged at {@link Level#INFO} with the debug prefix.
+     */
+    static final byte DEBUG = 1;
+    /**
+     * The record is logged at {@link Level#INFO} with the plugin prefix.
+     */
+    static final byte INFO = 2;
+    /**
+     * The record is logged at its own level with the plugin prefix.
+     */
+    static final byte PASS = 3;
+
+    private static final int BUCKETS = Level.SEVERE.intValue() / 100 + 1;
+
+    private final byte[] actions = new byte[BUCKETS];
+
+    /**
+     * Builds the table.
+     *
+     * @param debugLevel The debug level in effect, 0-3.
+     * @param showConfig Whether {@link Level#CONFIG} records are shown.
+     */
+    LevelActions(final int debugLevel, final boolean showConfig) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            final int value = bucket * 100;
+            final byte action;
+            if (value >= Level.INFO.intValue()) {
+                action = PASS;
+            } else if (value >= Level.CONFIG.intValue()) {
+                action = showConfig ? INFO : DROP;
+            } else if (value >= Level.FINE.intValue()) {
+                action = debugLevel >= 1 ? DEBUG : DROP;
+            } else if (value >= Level.FINER.intValue()) {
+                action = debugLevel >= 2 ? DEBUG : DROP;
+            } else {
+                action = debugLevel >= 3 ? DEBUG : DROP;
+            }
+            actions[bucket] = action;
+        }
+    }
+
+    /**
+     * Returns what to do with a record of the given level.
+     *
+     * @param level The record's level.
+     * @return one of {@link #DROP}, {@link #DEBUG}, {@link #INFO} or {@link #PASS}.
+     */
+    byte get(final Level level) {
+        final int bucket = level.intValue() / 100;
+        return actions[bucket < 0 ? 0 : bucket >= BUCKETS ? BUCKETS - 1 : bucket];
+    }
+}
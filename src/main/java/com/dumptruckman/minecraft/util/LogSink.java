@@ -0,0 +1,306 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * An asynchronous log destination.  Wraps any {@link Handler} with a bounded queue and a writer thread of its own so
+ * that a slow destination never delays the logging thread or any other sink.
+ *
+ * Records are checked against this sink's level and filter before they are queued.  When the queue is full the
+ * record is dropped and counted instead of blocking the caller, unless the sink was created to block.  The writer
+ * thread writes a warning of how many records were dropped to the wrapped handler after the batch it was writing
+ * when they were, so a gap in the destination never goes unnoticed.
+ *
+ * The wrapped handler may also be opened lazily by the writer thread so that slow setup, such as opening a file,
+ * never happens on the thread that creates the sink.
+ */
+public class LogSink extends Handler {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+    /**
+     * How often a blocked caller checks whether the sink was closed while it waited.
+     */
+    static final long BLOCK_POLL_MILLIS = 100L;
+    /**
+     * The message written in place of dropped records, formatted with this sink's name and the number dropped.
+     */
+    static final String DROPPED_MESSAGE = "%s dropped %d records because its writer fell behind.";
+
+    /**
+     * Queued on close to wake the writer thread.  Never written.
+     */
+    private static final LogRecord CLOSE = new LogRecord(Level.OFF, null);
+
+    private final String name;
+    private final Callable<? extends Handler> opener;
+    private volatile Handler handler;
+    private final BlockingQueue<LogRecord> queue;
+    private final int capacity;
+    private final boolean block;
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * The number of dropped records already reported to the handler.  Only used by the writer thread.
+     */
+    private long reported = 0L;
+    private final Thread thread;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates a new sink with the default queue capacity and starts its writer thread.
+     *
+     * @param name    The name of this sink, used for the writer thread.
+     * @param handler The handler records are written to.
+     */
+    public LogSink(final String name, final Handler handler) {
+        this(name, handler, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new sink and starts its writer thread.
+     *
+     * @param name     The name of this sink, used for the writer thread.
+     * @param handler  The handler records are written to.
+     * @param capacity The maximum number of records waiting to be written before new records are dropped.
+     */
+    public LogSink(final String name, final Handler handler, final int capacity) {
+        this(name, null, handler, capacity, false);
+    }
+
+    /**
+     * Creates a new sink whose handler is opened by its writer thread and starts that thread.  Records queued before
+     * the handler is open are written once it is.  If opening fails the error is reported and records are discarded.
+     *
+     * @param name     The name of this sink, used for the writer thread.
+     * @param opener   Opens the handler records are written to.
+     * @param capacity The maximum number of records waiting to be written before new records are dropped.
+     */
+    public LogSink(final String name, final Callable<? extends Handler> opener, final int capacity) {
+        this(name, opener, capacity, false);
+    }
+
+    /**
+     * Creates a new sink whose handler is opened by its writer thread and starts that thread.  Records queued before
+     * the handler is open are written once it is.  If opening fails the error is reported and records are discarded.
+     *
+     * @param name     The name of this sink, used for the writer thread.
+     * @param opener   Opens the handler records are written to.
+     * @param capacity The maximum number of records waiting to be written.
+     * @param block    True to make callers wait for room when the queue is full rather than drop their records.
+     *                 Records are then only dropped if the sink is closed while they wait.  {@link Logging} never
+     *                 creates blocking sinks, as it publishes while holding a lock every logging thread needs.
+     */
+    public LogSink(final String name, final Callable<? extends Handler> opener, final int capacity,
+                   final boolean block) {
+        this(name, opener, null, capacity, block);
+    }
+
+    private LogSink(final String name, final Callable<? extends Handler> opener, final Handler handler,
+                    final int capacity, final boolean block) {
+        if (handler == null && opener == null) {
+            throw new IllegalArgumentException("handler may not be null!");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1!");
+        }
+        this.name = name;
+        this.opener = opener;
+        this.handler = handler;
+        this.capacity = capacity;
+        this.block = block;
+        this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Logging-Sink-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the name of this sink.
+     *
+     * @return the name of this sink.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the handler this sink writes to.
+     *
+     * @return the handler this sink writes to or null if it has not been opened yet.
+     */
+    public Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Returns the number of records dropped because the queue was full.
+     *
+     * @return the number of records dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Queues a record for writing if it passes this sink's level and filter.  Never blocks unless this sink was
+     * created to block and its queue is full.
+     *
+     * @param record the LogRecord.
+     */
+    @Override
+    public void publish(final LogRecord record) {
+        if (closed.get() || !isLoggable(record)) {
+            return;
+        }
+        if (queue.offer(record)) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final long total = block && await(record) ? dropped.get() : dropped.incrementAndGet();
+        if (LoggingEvents.enabled) {
+            LoggingEvents.backpressure(name, capacity, total, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Waits for room in the queue until this sink is closed.
+     *
+     * @return true if the record was queued.
+     */
+    private boolean await(final LogRecord record) {
+        try {
+            while (!closed.get()) {
+                if (queue.offer(record, BLOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public void flush() {
+        final Handler handler = this.handler;
+        if (handler != null) {
+            handler.flush();
+        }
+    }
+
+    /**
+     * Stops accepting records, writes out everything already queued and closes the wrapped handler.  Waits up to
+     * {@link #CLOSE_TIMEOUT_MILLIS} for the writer thread.  If it is still writing by then the handler is closed by
+     * the writer thread once it finishes, never while it is in use.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        queue.offer(CLOSE);
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            reportError(name + " is still writing after " + CLOSE_TIMEOUT_MILLIS
+                        + " ms; its handler will be closed when it finishes", null, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    private void drain() {
+        if (handler == null) {
+            try {
+                handler = opener.call();
+            } catch (Exception e) {
+                reportError("Could not open " + name, e, ErrorManager.OPEN_FAILURE);
+                closed.set(true);
+                queue.clear();
+                return;
+            }
+        }
+        try {
+            write();
+        } finally {
+            try {
+                handler.close();
+            } catch (RuntimeException e) {
+                reportError(null, e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    private void write() {
+        final List<LogRecord> batch = new ArrayList<LogRecord>();
+        while (!closed.get() || !queue.isEmpty()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            final long start = LoggingEvents.enabled ? System.nanoTime() : 0L;
+            int records = 0;
+            for (LogRecord record : batch) {
+                if (record == CLOSE) {
+                    continue;
+                }
+                records++;
+                try {
+                    handler.publish(record);
+                } catch (RuntimeException e) {
+                    reportError(null, e, ErrorManager.WRITE_FAILURE);
+                }
+            }
+            batch.clear();
+            reportDropped();
+            try {
+                handler.flush();
+            } catch (RuntimeException e) {
+                reportError(null, e, ErrorManager.FLUSH_FAILURE);
+            }
+            if (start != 0L && records > 0) {
+                LoggingEvents.sinkWrite(name, records, start);
+            }
+        }
+    }
+
+    /**
+     * Writes a warning to the handler if records were dropped since the last one.
+     */
+    private void reportDropped() {
+        final long total = dropped.get();
+        if (total == reported) {
+            return;
+        }
+        final LogRecord warning = new LogRecord(Level.WARNING,
+                                                String.format(DROPPED_MESSAGE, name, total - reported));
+        reported = total;
+        try {
+            handler.publish(warning);
+        } catch (RuntimeException e) {
+            reportError(null, e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+}
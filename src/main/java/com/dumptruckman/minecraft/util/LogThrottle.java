@@ -0,0 +1,99 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the time logging calls spend on their calling threads and caps the debug level when that time goes over a
+ * budget.
+ *
+ * Time is summed per window.  At the end of a window that went over budget the cap steps down one debug level, from
+ * {@link java.util.logging.Level#FINEST} to {@link java.util.logging.Level#FINER} to
+ * {@link java.util.logging.Level#FINE} and finally to 0, where debug output is dropped entirely.  At the end of a
+ * window that used no more than half the budget the cap steps back up one level.  The cap never goes above the
+ * configured debug level, so every step changes the level in effect.
+ */
+class LogThrottle {
+
+    static final int MAX_LEVEL = 3;
+
+    private final LongAdder spent = new LongAdder();
+    private final AtomicLong windowStart = new AtomicLong();
+    private volatile long budgetNanos = 0L;
+    private volatile long windowNanos = 0L;
+    private volatile int cap = MAX_LEVEL;
+
+    /**
+     * Sets the budget and restores full detail.
+     *
+     * @param budgetNanos The time logging may spend per window, 0 to disable throttling.
+     * @param windowNanos The length of a window.
+     * @param now         The current {@link System#nanoTime()}.
+     */
+    void configure(final long budgetNanos, final long windowNanos, final long now) {
+        this.budgetNanos = 0L;
+        this.windowNanos = windowNanos;
+        cap = MAX_LEVEL;
+        spent.reset();
+        windowStart.set(now);
+        this.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * Restores full detail without starting a new window, for when the configured debug level changes.
+     */
+    void restore() {
+        cap = MAX_LEVEL;
+    }
+
+    /**
+     * Returns whether a budget is set.
+     *
+     * @return whether a budget is set.
+     */
+    boolean isEnabled() {
+        return budgetNanos > 0L;
+    }
+
+    /**
+     * Returns the highest debug level currently allowed.
+     *
+     * @return the highest debug level currently allowed, 0 when debug output is being dropped.
+     */
+    int getCap() {
+        return cap;
+    }
+
+    /**
+     * Adds the time of one logging call and, if the window is over, adjusts the cap.  Only one of the threads ending
+     * a window adjusts it.
+     *
+     * @param start      The {@link System#nanoTime()} the call started.
+     * @param end        The {@link System#nanoTime()} the call ended.
+     * @param configured The configured debug level, 0-3.
+     * @return true if this call ended the window.
+     */
+    boolean record(final long start, final long end, final int configured) {
+        spent.add(end - start);
+        final long begin = windowStart.get();
+        final long elapsed = end - begin;
+        final long window = windowNanos;
+        if (elapsed < window || !windowStart.compareAndSet(begin, end)) {
+            return false;
+        }
+        // A window that ran long because nothing was logged is scaled back to a single window's worth.
+        final long used = (long) (spent.sumThenReset() * ((double) window / elapsed));
+        final long budget = budgetNanos;
+        int level = Math.min(cap, configured);
+        if (used > budget && level > 0) {
+            level--;
+        } else if (used <= budget / 2 && level < configured) {
+            level++;
+        }
+        cap = level;
+        return true;
+    }
+}
@@ -7,12 +7,21 @@ import org.bukkit.plugin.Plugin;
 
 import java.io.File;
 import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 /**
  * Static plugin logger.
+ *
+ * The locks taken on the logging path, here and in the classes behind it, are {@link ReentrantLock}s rather than
+ * monitors so that a virtual thread waiting on one, or holding one while a handler blocks, is not pinned to its carrier
+ * thread.
  */
 public class Logging {
 
@@ -22,13 +31,29 @@ public class Logging {
     static final boolean SHOW_CONFIG = true;
 
     static final InterceptedLogger LOG = new InterceptedLogger(Logger.getLogger("Minecraft"));
+    static final List<LogSink> SINKS = new CopyOnWriteArrayList<LogSink>();
+    static final LogThrottle THROTTLE = new LogThrottle();
 
-    static String name = ORIGINAL_NAME;
-    static String version = ORIGINAL_VERSION;
-    static String debug = ORIGINAL_DEBUG;
-    static DebugLog debugLog = null;
+    /**
+     * Guards the record fan-out so every destination sees records in the same order.
+     */
+    static final ReentrantLock LOG_LOCK = new ReentrantLock();
+    /**
+     * Guards opening and closing {@link #debugLog}, which can happen on the logging path.
+     */
+    static final ReentrantLock DEBUG_LOG_LOCK = new ReentrantLock();
+    /**
+     * Guards rebuilding {@link #levelActions} so a rebuild from stale settings cannot replace a newer one.
+     */
+    static final ReentrantLock LEVEL_ACTIONS_LOCK = new ReentrantLock();
+
+    static volatile String name = ORIGINAL_NAME;
+    static volatile String version = ORIGINAL_VERSION;
+    static volatile String debug = ORIGINAL_DEBUG;
+    static volatile DebugLog debugLog = null;
     static Plugin plugin = null;
     static volatile boolean showConfig = SHOW_CONFIG;
+    static volatile LevelActions levelActions = new LevelActions(DebugLog.ORIGINAL_DEBUG_LEVEL, SHOW_CONFIG);
 
     protected Logging() {
         throw new AssertionError();
@@ -43,17 +68,48 @@ public class Logging {
             this.logger = logger;
         }
 
-        synchronized void _log(final Level level, final String message) {
-            final LogRecord record = new LogRecord(level, message);
+        void _log(final Level level, final String message) {
+            _log(level, level, message);
+        }
+
+        /**
+         * Logs a message to the server at one level and to the debug log and sinks at another.
+         *
+         * @param consoleLevel The level for the server's logger.
+         * @param level        The level for the debug log and sinks.
+         * @param message      The message.
+         */
+        void _log(final Level consoleLevel, final Level level, final String message) {
+            final LogRecord record = new LogRecord(consoleLevel, message);
             record.setLoggerName(getName());
             record.setResourceBundle(getResourceBundle());
-            _log(record);
+            _log(record, consoleLevel == level ? record : copy(record, level));
         }
 
-        synchronized void _log(final LogRecord record) {
-            logger.log(record);
-            if (debugLog != null) {
-                debugLog.log(record);
+        void _log(final LogRecord record) {
+            _log(record, record);
+        }
+
+        /**
+         * Logs a record to the server and a record of the same message to the debug log and sinks.  The two differ
+         * only in level when a debug or config message is shown on the console as {@link Level#INFO}.
+         *
+         * @param console The record for the server's logger.
+         * @param record  The record for the debug log and sinks.
+         */
+        void _log(final LogRecord console, final LogRecord record) {
+            LOG_LOCK.lock();
+            try {
+                logger.log(console);
+                final DebugLog debugLog = getDebugLog();
+                if (debugLog != null) {
+                    debugLog.log(record);
+                }
+                for (LogSink sink : SINKS) {
+                    sink.publish(record);
+                }
+            } finally {
+                LOG_LOCK.unlock();
             }
         }
 
@@ -64,28 +120,65 @@ public class Logging {
          * @param record the LogRecord.
          */
         @Override
-        public synchronized void log(final LogRecord record) {
+        public void log(final LogRecord record) {
+            if (!THROTTLE.isEnabled()) {
+                doLog(record);
+                return;
+            }
+            final long start = System.nanoTime();
+            try {
+                doLog(record);
+            } finally {
+                throttle(start);
+            }
+        }
+
+        private void doLog(final LogRecord record) {
             final Level level = record.getLevel();
-            final String message = record.getMessage();
-            final int debugLevel = getDebugLevel();
-            if ((level == Level.FINE && debugLevel >= 1)
-                    || (level == Level.FINER && debugLevel >= 2)
-                    || (level == Level.FINEST && debugLevel >= 3)) {
-                record.setLevel(Level.INFO);
-                record.setMessage(getDebugString(message));
-                LOG._log(record);
-            } else if (level != Level.FINE && level != Level.FINER && level != Level.FINEST) {
-                if (level != Level.CONFIG || showConfig) {
-                    if (level == Level.CONFIG) {
-                        record.setLevel(Level.INFO);
-                    }
-                    record.setMessage(getPrefixedMessage(message, false));
+            switch (levelActions.get(level)) {
+                case LevelActions.DEBUG:
+                    record.setLevel(Level.INFO);
+                    record.setMessage(getDebugString(record.getMessage()));
+                    LOG._log(record, copy(record, level));
+                    break;
+                case LevelActions.INFO:
+                    record.setLevel(Level.INFO);
+                    record.setMessage(getPrefixedMessage(record.getMessage(), false));
+                    LOG._log(record, copy(record, level));
+                    break;
+                case LevelActions.PASS:
+                    record.setMessage(getPrefixedMessage(record.getMessage(), false));
                     LOG._log(record);
-                }
+                    break;
+                default:
+                    break;
             }
         }
     }
 
+    /**
+     * Returns a copy of a record at another level.  The copy is written on other threads, where the caller can no
+     * longer be inferred, so it has no source class or method.
+     *
+     * @param record The record to copy.
+     * @param level  The level of the copy.
+     * @return the copy.
+     */
+    static LogRecord copy(final LogRecord record, final Level level) {
+        final LogRecord copy = new LogRecord(level, record.getMessage());
+        copy.setMillis(record.getMillis());
+        copy.setSequenceNumber(record.getSequenceNumber());
+        copy.setThreadID(record.getThreadID());
+        copy.setLoggerName(record.getLoggerName());
+        copy.setResourceBundle(record.getResourceBundle());
+        copy.setResourceBundleName(record.getResourceBundleName());
+        copy.setParameters(record.getParameters());
+        copy.setThrown(record.getThrown());
+        copy.setSourceClassName(null);
+        copy.setSourceMethodName(null);
+        return copy;
+    }
+
     /**
      * Prepares the log for use.  Debugging will default to disabled when initialized.  This should be called early on
      * in plugin initialization, such as during onLoad() or onEnable().  If this {@link Logging} class has already
@@ -114,28 +207,108 @@ public class Logging {
      * is disabled so that a static reference to the plugin is not kept in cases of server reloads.
      */
     public synchronized static void shutdown() {
+        // Level first so a record racing with this cannot reopen the debug log being closed.
+        DebugLog.setDebugLevel(0);
         closeDebugLog();
+        closeSinks();
+        SharedDebugWriter.release();
         DebugLog.shutdown();
         plugin = null;
         name = ORIGINAL_NAME;
         version = ORIGINAL_VERSION;
         debug = ORIGINAL_DEBUG;
         showConfig = SHOW_CONFIG;
+        THROTTLE.configure(0L, 0L, System.nanoTime());
+        updateLevelActions();
     }
 
     /**
-     * Closes the debug log if it is open.
+     * Returns the debug log if debugging is enabled, opening it if this is the first record to need it.  The log stays
+     * open while the time budget drops debug output, so it still receives everything else.
+     *
+     * @return the open debug log or null if debugging is disabled.
      */
-    static synchronized void closeDebugLog() {
+    static DebugLog getDebugLog() {
+        if (DebugLog.getDebugLevel() == 0) {
+            return null;
+        }
+        final DebugLog debugLog = Logging.debugLog;
         if (debugLog != null) {
-            debugLog.close();
-            debugLog = null;
+            return debugLog;
+        }
+        return openDebugLog();
+    }
+
+    private static DebugLog openDebugLog() {
+        DEBUG_LOG_LOCK.lock();
+        try {
+            if (debugLog == null && DebugLog.getDebugLevel() > 0) {
+                debugLog = DebugLog.getDebugLogger();
+            }
+            return debugLog;
+        } catch (IllegalStateException e) {
+            // DebugLog was shut down by a concurrent reconfiguration; logging must not fail because of it.
+            return null;
+        } finally {
+            DEBUG_LOG_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Closes the debug log if it is open.
+     */
+    static void closeDebugLog() {
+        DEBUG_LOG_LOCK.lock();
+        try {
+            if (debugLog != null) {
+                debugLog.close();
+                debugLog = null;
+            }
+        } finally {
+            DEBUG_LOG_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Adds an additional destination for every record logged through this class.  The handler is wrapped in a
+     * {@link LogSink} so it is written to on its own thread and can never delay the logging thread or other sinks.
+     * The handler's level and filter are applied on top of the sink's own.  Sinks and the debug log see debug and
+     * config messages at the level they were logged at rather than the {@link Level#INFO} they are shown at on the
+     * console.  Sinks are closed on {@link #shutdown()}.
+     *
+     * @param name    The name of the sink.
+     * @param handler The handler to write records to.
+     * @return the sink wrapping the handler.  Its level and filter may be set to limit what it receives.
+     */
+    public static LogSink addSink(final String name, final Handler handler) {
+        final LogSink sink = new LogSink(name, handler);
+        SINKS.add(sink);
+        return sink;
+    }
+
+    /**
+     * Removes a sink added with {@link #addSink(String, Handler)}, writing out any queued records and closing it.
+     *
+     * @param sink The sink to remove.
+     */
+    public static void removeSink(final LogSink sink) {
+        if (SINKS.remove(sink)) {
+            sink.close();
+        }
+    }
+
+    /**
+     * Closes and removes all sinks.
+     */
+    static void closeSinks() {
+        for (LogSink sink : SINKS) {
+            removeSink(sink);
         }
     }
 
     /**
      * Sets the debug logging level of this plugin.  Debug messages will print to the console and to a
-     * debug log file when enabled.
+     * debug log file when enabled.  The debug log file is not opened until the first record is logged.
      * debugLevel:
      *   0 - turns off debug logging, disabling the debug logger, closing any open file hooks.
      *   1 - enables debug logging of {@link java.util.logging.Level#FINE} or lower messages.
@@ -148,12 +321,14 @@ public class Logging {
         if (debugLevel > 3 || debugLevel < 0) {
             throw new IllegalArgumentException("debugLevel must be between 0 and 3!");
         }
-        if (debugLevel > 0) {
-            debugLog = DebugLog.getDebugLogger();
-        } else {
-            closeDebugLog();
+        if (debugLevel > 0 && DebugLog.getLoggerName() == null) {
+            throw new IllegalStateException("DebugLog has not been initialized!");
         }
+        // Level first so a record racing with this cannot reopen the debug log being closed.
         DebugLog.setDebugLevel(debugLevel);
+        if (debugLevel == 0) {
+            closeDebugLog();
+        }
     }
 
     /**
@@ -161,10 +336,78 @@ public class Logging {
      *
      * @return A value 0-3 indicating the debug logging level.
      */
-    public static synchronized int getDebugLevel() {
+    public static int getDebugLevel() {
         return DebugLog.getDebugLevel();
     }
 
+    /**
+     * Returns the debug logging level currently in effect.  This is the level set with {@link #setDebugLevel(int)}
+     * unless logging has gone over the budget set with {@link #setDebugTimeBudget(long, long, TimeUnit)}.
+     *
+     * @return A value 0-3 indicating the debug logging level in effect.
+     */
+    public static int getEffectiveDebugLevel() {
+        final int debugLevel = DebugLog.getDebugLevel();
+        return THROTTLE.isEnabled() ? Math.min(debugLevel, THROTTLE.getCap()) : debugLevel;
+    }
+
+    /**
+     * Rebuilds {@link #levelActions} from the effective debug level and whether config messages are shown.  Must be
+     * called whenever either changes.
+     */
+    static void updateLevelActions() {
+        LEVEL_ACTIONS_LOCK.lock();
+        try {
+            levelActions = new LevelActions(getEffectiveDebugLevel(), showConfig);
+        } finally {
+            LEVEL_ACTIONS_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Sets how much time logging may spend on the threads that call it.  When a window goes over the budget the
+     * effective debug level steps down, from {@link Level#FINEST} to {@link Level#FINER} to {@link Level#FINE} and
+     * then to dropping debug output entirely.  Records of other levels still reach the debug log.  Once a window uses
+     * no more than half the budget it steps back up, never above the level set with {@link #setDebugLevel(int)}.
+     * Every change is logged.  On a game server a window of a second covers 20 ticks.
+     *
+     * @param budget The time logging may spend per window, 0 to disable throttling.
+     * @param window The length of a window.
+     * @param unit   The unit of budget and window.
+     */
+    public static void setDebugTimeBudget(final long budget, final long window, final TimeUnit unit) {
+        if (budget < 0 || window <= 0) {
+            throw new IllegalArgumentException("budget may not be negative and window must be positive!");
+        }
+        THROTTLE.configure(unit.toNanos(budget), unit.toNanos(window), System.nanoTime());
+        updateLevelActions();
+    }
+
+    /**
+     * Adds the time since start to the throttle and logs any change of the effective debug level it causes.
+     *
+     * @param start The {@link System#nanoTime()} the logging call started.
+     */
+    static void throttle(final long start) {
+        final int before = getEffectiveDebugLevel();
+        if (!THROTTLE.record(start, System.nanoTime(), DebugLog.getDebugLevel())) {
+            return;
+        }
+        final int after = getEffectiveDebugLevel();
+        if (after != before) {
+            updateLevelActions();
+        }
+        if (after < before) {
+            if (after == 0) {
+                warning("Logging is over its time budget, dropping debug output.");
+            } else {
+                warning("Logging is over its time budget, limiting debug output to level %d.", after);
+            }
+        } else if (after > before) {
+            info("Logging is back under its time budget, debug output restored to level %d.", after);
+        }
+    }
+
     /**
      * Sets whether or not to display {@link Level#CONFIG} messages.
      *
@@ -172,6 +415,7 @@ public class Logging {
      */
     public static void setShowingConfig(final boolean showConfig) {
         Logging.showConfig = showConfig;
+        updateLevelActions();
     }
 
     /**
@@ -190,7 +434,7 @@ public class Logging {
      * @param showVersion Whether to show version in log message
      * @return Modified message
      */
-    public static synchronized String getPrefixedMessage(final String message, final boolean showVersion) {
+    public static String getPrefixedMessage(final String message, final boolean showVersion) {
         final StringBuilder builder = new StringBuilder("[").append(name);
         if (showVersion) {
             builder.append(" ").append(version);
@@ -204,7 +448,7 @@ public class Logging {
      *
      * @param debugPrefix the new debug prefix to use.
      */
-    public static synchronized void setDebugPrefix(final String debugPrefix) {
+    public static void setDebugPrefix(final String debugPrefix) {
         Logging.debug = debugPrefix;
     }
 
@@ -214,7 +458,7 @@ public class Logging {
      * @param message     Log message
      * @return Modified message
      */
-    public static synchronized String getDebugString(final String message) {
+    public static String getDebugString(final String message) {
         return "[" + name + debug + "] " + message;
     }
 
@@ -237,21 +481,46 @@ public class Logging {
      * @param message     The string message.
      * @param args        Arguments for the String.format() that is applied to the message.
      */
-    public static synchronized void log(final boolean showVersion, final Level level, String message, final Object... args) {
-        final int debugLevel = getDebugLevel();
-        if ((level == Level.FINE && debugLevel >= 1)
-                || (level == Level.FINER && debugLevel >= 2)
-                || (level == Level.FINEST && debugLevel >= 3)) {
-            debug(Level.INFO, message, args);
-        } else if (level != Level.FINE && level != Level.FINER && level != Level.FINEST) {
-            if (level != Level.CONFIG || showConfig) {
-                if (level == Level.CONFIG) {
-                    LOG._log(Level.INFO, getPrefixedMessage(format(message, args), showVersion));
-                } else {
-                    LOG._log(level, getPrefixedMessage(format(message, args), showVersion));
-                }
-            }
+    public static void log(final boolean showVersion, final Level level, String message, final Object... args) {
+        if (!THROTTLE.isEnabled()) {
+            doLog(showVersion, level, message, args);
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            doLog(showVersion, level, message, args);
+        } finally {
+            throttle(start);
+        }
+    }
+
+    private static void doLog(final boolean showVersion, final Level level, String message, final Object... args) {
+        switch (levelActions.get(level)) {
+            case LevelActions.DEBUG:
+                LOG._log(Level.INFO, level, getDebugString(format(level, message, args)));
+                break;
+            case LevelActions.INFO:
+                LOG._log(Level.INFO, level, getPrefixedMessage(format(level, message, args), showVersion));
+                break;
+            case LevelActions.PASS:
+                LOG._log(level, getPrefixedMessage(format(level, message, args), showVersion));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Formats the message, reporting a flight recorder event for it while a recording is running.
+     */
+    private static String format(final Level level, final String message, final Object[] args) {
+        if (!LoggingEvents.enabled) {
+            return format(message, args);
         }
+        final long start = System.nanoTime();
+        final String formatted = format(message, args);
+        LoggingEvents.record(level, message, System.nanoTime() - start);
+        return formatted;
     }
 
     private static String format(final String message, final Object[] args) {
@@ -283,7 +552,7 @@ public class Logging {
      * @param args    Arguments for the String.format() that is applied to the message.
      */
     static void debug(final Level level, String message, final Object...args) {
-        LOG._log(level, getDebugString(format(message, args)));
+        LOG._log(level, getDebugString(format(level, message, args)));
     }
 
     /**
@@ -0,0 +1,148 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Java Flight Recorder events for the logging hot spots: formatting a record, a sink or file writer writing a batch
+ * and a sink's queue being full.
+ *
+ * The events need JFR, which this library's Java 8 code may not refer to.  They are recorded by
+ * {@code FlightRecorderEvents}, which is built from {@code src/main/java11} for Java 11 into the same package and
+ * looked up by name.  On older runtimes, or from a jar built on JDK 8, nothing is recorded.
+ *
+ * Callers check {@link #enabled} before doing any work for an event, so when no recording is running the only cost
+ * is a volatile read.  Looking up the recorder and starting to follow recordings takes tens of milliseconds, so it is
+ * done on a thread of its own rather than by the first record.
+ */
+final class LoggingEvents {
+
+    /**
+     * True while at least one flight recording is running.  Maintained by the recorder.
+     */
+    static volatile boolean enabled = false;
+
+    /**
+     * Records the events.  Implemented by {@code FlightRecorderEvents}.
+     */
+    interface Recorder {
+
+        void record(Level level, String pattern, long formatNanos);
+
+        void sinkWrite(String sink, int records, long startNanos);
+
+        void fileWrite(String writer, int records, long bytes, long startNanos);
+
+        void backpressure(String sink, int capacity, long dropped, long waitNanos);
+    }
+
+    private static volatile Recorder recorder = null;
+    private static final CountDownLatch LOADED = new CountDownLatch(1);
+
+    static {
+        final Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recorder = load();
+                } finally {
+                    LOADED.countDown();
+                }
+            }
+        }, "Logging-FlightRecorder");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private LoggingEvents() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Waits for the recorder to be looked up.
+     *
+     * @param timeout The longest time to wait.
+     * @param unit    The unit of timeout.
+     * @return true if events can be recorded.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    static boolean awaitRecorder(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return LOADED.await(timeout, unit) && recorder != null;
+    }
+
+    private static Recorder load() {
+        // Derived from this class so it survives relocation when shaded.
+        final String name = LoggingEvents.class.getName();
+        try {
+            return (Recorder) Class.forName(name.substring(0, name.lastIndexOf('.') + 1) + "FlightRecorderEvents")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (LinkageError e) {
+            // Built for a newer Java than this one.
+            return null;
+        }
+    }
+
+    /**
+     * Commits a record formatted by {@link Logging}.
+     *
+     * @param level       The level the record was logged at.
+     * @param pattern     The message before formatting.
+     * @param formatNanos The time formatting took.
+     */
+    static void record(final Level level, final String pattern, final long formatNanos) {
+        final Recorder recorder = LoggingEvents.recorder;
+        if (recorder != null) {
+            recorder.record(level, pattern, formatNanos);
+        }
+    }
+
+    /**
+     * Commits a batch written by a sink.  Sinks wrap arbitrary handlers and cannot tell how many bytes they wrote.
+     *
+     * @param sink       The sink's name.
+     * @param records    The number of records in the batch.
+     * @param startNanos The {@link System#nanoTime()} the batch started.
+     */
+    static void sinkWrite(final String sink, final int records, final long startNanos) {
+        final Recorder recorder = LoggingEvents.recorder;
+        if (recorder != null) {
+            recorder.sinkWrite(sink, records, startNanos);
+        }
+    }
+
+    /**
+     * Commits a batch written to debug log files by a writer that encodes the records itself.
+     *
+     * @param writer     The writer's name.
+     * @param records    The number of records in the batch.
+     * @param bytes      The number of bytes written.
+     * @param startNanos The {@link System#nanoTime()} the batch started.
+     */
+    static void fileWrite(final String writer, final int records, final long bytes, final long startNanos) {
+        final Recorder recorder = LoggingEvents.recorder;
+        if (recorder != null) {
+            recorder.fileWrite(writer, records, bytes, startNanos);
+        }
+    }
+
+    /**
+     * Commits a record that found a sink's queue full.
+     *
+     * @param sink      The sink's name.
+     * @param capacity  The capacity of the sink's queue.
+     * @param dropped   The number of records the sink has dropped so far, including this one if it was.
+     * @param waitNanos The time the caller waited for room, 0 if it did not wait.
+     */
+    static void backpressure(final String sink, final int capacity, final long dropped, final long waitNanos) {
+        final Recorder recorder = LoggingEvents.recorder;
+        if (recorder != null) {
+            recorder.backpressure(sink, capacity, dropped, waitNanos);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * A process-wide writer that multiplexes many debug log files onto a single I/O thread.
+ *
+ * The writer is registered as the only handler of a well known {@link Logger} so that every copy of this library in
+ * the process, shaded or not, finds the same instance through the JDK's own logger registry.  Copies only ever talk
+ * to it through the {@link Handler} API: each record's logger name is the target file and its message is the already
+ * formatted text.  A record at {@link Level#OFF} closes the target file.
+ *
+ * Publishing never waits.  When the queue is full a record is dropped and counted against its file, and the writer
+ * notes the number dropped in that file once it catches up.  A close is never dropped; it is set aside and carried out
+ * after the records queued before it.
+ *
+ * The writer and its thread belong to the copy that started it and keep that copy's class loader alive while they
+ * run.  So that a plugin can be unloaded, {@link Logging#shutdown()} calls {@link #release()}, which stops the writer
+ * if this copy started it after writing out everything queued and closing its files.  Other copies still writing are
+ * then refused with an {@link IllegalStateException} and start a writer of their own, reopening their files.  A copy
+ * that is never shut down keeps its class loader alive for as long as the process runs.
+ */
+class SharedDebugWriter extends Handler {
+
+    /**
+     * Deliberately not a class name so that relocation does not give each shaded copy its own writer.
+     */
+    static final String LOGGER_NAME = "dumptruckman.logging.SharedDebugWriter";
+    static final int CAPACITY = 8192;
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Queued when the writer stops.  Never written.
+     */
+    private static final LogRecord STOP = new LogRecord(Level.OFF, null);
+
+    /**
+     * Held by the writer thread so the registry logger, which the log manager only references weakly, is never
+     * collected while the writer is running.
+     */
+    private final Logger registry;
+    private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(CAPACITY);
+    private final Map<String, Writer> writers = new HashMap<String, Writer>();
+    private final ConcurrentMap<String, AtomicLong> dropped = new ConcurrentHashMap<String, AtomicLong>();
+    /**
+     * Files to close whose close did not fit in the queue.
+     */
+    private final Queue<String> closes = new ConcurrentLinkedQueue<String>();
+    /**
+     * Formats the notes of dropped records.  Only used by the writer thread.
+     */
+    private final Formatter formatter = new DebugLog.LogFormatter();
+    /**
+     * Read locked to check {@link #stopped} and queue a record, write locked to stop, so nothing is queued after.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Thread thread;
+    private boolean stopped = false;
+
+    /**
+     * Returns the writer shared by the whole process, starting it if no copy of this library has done so yet.
+     *
+     * @return the shared writer's handler.
+     */
+    static Handler getSharedWriter() {
+        final Logger registry = Logger.getLogger(LOGGER_NAME);
+        synchronized (registry) {
+            final Handler[] handlers = registry.getHandlers();
+            if (handlers.length > 0) {
+                return handlers[0];
+            }
+            final SharedDebugWriter writer = new SharedDebugWriter(registry);
+            registry.setUseParentHandlers(false);
+            registry.addHandler(writer);
+            return writer;
+        }
+    }
+
+    /**
+     * Stops the shared writer if this copy of the library started it, so it no longer keeps this copy's class loader
+     * alive.  Returns once everything already queued has been written and the files are closed.  Other copies that
+     * still write get a new writer.
+     */
+    static void release() {
+        final Logger registry = Logger.getLogger(LOGGER_NAME);
+        final SharedDebugWriter writer;
+        synchronized (registry) {
+            final Handler[] handlers = registry.getHandlers();
+            if (handlers.length == 0 || !(handlers[0] instanceof SharedDebugWriter)) {
+                return;
+            }
+            writer = (SharedDebugWriter) handlers[0];
+            registry.removeHandler(writer);
+        }
+        writer.stop();
+    }
+
+    private SharedDebugWriter(final Logger registry) {
+        this.registry = registry;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Logging-SharedDebugWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a record without waiting.  If the writer has fallen behind the record is dropped and counted, or set
+     * aside if it closes a file.
+     *
+     * @param record the LogRecord.
+     * @throws IllegalStateException if the writer has been stopped.
+     */
+    @Override
+    public void publish(final LogRecord record) {
+        lock.readLock().lock();
+        try {
+            if (stopped) {
+                throw new IllegalStateException("The shared debug writer has been stopped!");
+            }
+            if (queue.offer(record)) {
+                return;
+            }
+            final String file = record.getLoggerName();
+            if (record.getLevel() == Level.OFF) {
+                closes.add(file);
+                return;
+            }
+            AtomicLong count = dropped.get(file);
+            if (count == null) {
+                final AtomicLong created = new AtomicLong();
+                count = dropped.putIfAbsent(file, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            final long total = count.incrementAndGet();
+            if (LoggingEvents.enabled) {
+                LoggingEvents.backpressure(LOGGER_NAME, CAPACITY, total, 0L);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void flush() { }
+
+    /**
+     * Does nothing; the writer is stopped by {@link #release()} of the copy that started it, as other copies may
+     * still be using it.
+     */
+    @Override
+    public void close() { }
+
+    private void stop() {
+        lock.writeLock().lock();
+        try {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(STOP);
+                thread.join(LogSink.CLOSE_TIMEOUT_MILLIS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        final List<LogRecord> batch = new ArrayList<LogRecord>();
+        final Set<Writer> touched = new LinkedHashSet<Writer>();
+        final List<String> closing = new ArrayList<String>();
+        boolean stopping = false;
+        while (!stopping) {
+            // Taken before the queue is drained, so every record queued ahead of these closes is in this batch.
+            String deferred;
+            while ((deferred = closes.poll()) != null) {
+                closing.add(deferred);
+            }
+            try {
+                final LogRecord first = closing.isEmpty() ? queue.take() : queue.poll();
+                if (first != null) {
+                    batch.add(first);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            final long start = LoggingEvents.enabled ? System.nanoTime() : 0L;
+            int records = 0;
+            long bytes = 0L;
+            for (LogRecord record : batch) {
+                final String file = record.getLoggerName();
+                if (record == STOP) {
+                    stopping = true;
+                    continue;
+                } else if (record.getLevel() == Level.OFF) {
+                    close(file, touched);
+                    continue;
+                }
+                try {
+                    final Writer writer = getWriter(file);
+                    writer.write(record.getMessage());
+                    touched.add(writer);
+                    records++;
+                    if (start != 0L) {
+                        bytes += record.getMessage().getBytes(CHARSET).length;
+                    }
+                } catch (IOException e) {
+                    reportError(file, e, ErrorManager.WRITE_FAILURE);
+                }
+            }
+            for (String dropping : dropped.keySet()) {
+                reportDropped(dropping, touched);
+            }
+            for (String closed : closing) {
+                close(closed, touched);
+            }
+            closing.clear();
+            for (Writer writer : touched) {
+                try {
+                    writer.flush();
+                } catch (IOException e) {
+                    reportError(null, e, ErrorManager.FLUSH_FAILURE);
+                }
+            }
+            if (start != 0L && records > 0) {
+                LoggingEvents.fileWrite(LOGGER_NAME, records, bytes, start);
+            }
+            batch.clear();
+            touched.clear();
+        }
+        for (Writer writer : writers.values()) {
+            closeQuietly(writer);
+        }
+        writers.clear();
+    }
+
+    /**
+     * Notes in a file how many of its records were dropped since the last note, if any were.
+     */
+    private void reportDropped(final String file, final Set<Writer> touched) {
+        final AtomicLong count = dropped.get(file);
+        final long lost = count == null ? 0L : count.getAndSet(0L);
+        if (lost == 0L) {
+            return;
+        }
+        final LogRecord warning = new LogRecord(Level.WARNING,
+                                                String.format(LogSink.DROPPED_MESSAGE, LOGGER_NAME, lost));
+        try {
+            final Writer writer = getWriter(file);
+            writer.write(formatter.format(warning));
+            touched.add(writer);
+        } catch (IOException e) {
+            reportError(file, e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    private void close(final String file, final Set<Writer> touched) {
+        reportDropped(file, touched);
+        final Writer writer = writers.remove(file);
+        touched.remove(writer);
+        closeQuietly(writer);
+    }
+
+    private Writer getWriter(final String file) throws IOException {
+        Writer writer = writers.get(file);
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), CHARSET));
+            writers.put(file, writer);
+        }
+        return writer;
+    }
+
+    private void closeQuietly(final Writer writer) {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                reportError(null, e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * The per-file handle a {@link DebugLog} writes through.  Formats records on the logging thread and hands the
+     * text to the shared writer.
+     */
+    static class FileHandle extends Handler {
+
+        private final String file;
+        private Handler writer;
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean closed = false;
+
+        FileHandle(final String file) {
+            this.file = file;
+            this.writer = getSharedWriter();
+        }
+
+        @Override
+        public void publish(final LogRecord record) {
+            if (!isLoggable(record)) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (closed) {
+                    // Would reopen the file on the shared writer and leave it open.
+                    return;
+                }
+                // The formatter is not thread safe.
+                final LogRecord text = new LogRecord(Level.INFO, getFormatter().format(record));
+                text.setLoggerName(file);
+                try {
+                    writer.publish(text);
+                } catch (IllegalStateException e) {
+                    // The copy that started the writer has shut down; carry on with one of this copy's own.
+                    writer = getSharedWriter();
+                    try {
+                        writer.publish(text);
+                    } catch (IllegalStateException again) {
+                        // Stopped again already; the record is lost but logging must not fail because of it.
+                        reportError(file, again, ErrorManager.WRITE_FAILURE);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                final LogRecord close = new LogRecord(Level.OFF, null);
+                close.setLoggerName(file);
+                try {
+                    writer.publish(close);
+                } catch (IllegalStateException e) {
+                    // A stopped writer has already closed the file.
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
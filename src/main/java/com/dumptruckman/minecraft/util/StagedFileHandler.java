@@ -0,0 +1,410 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Writes a file from an off-heap staging arena.  Records are formatted and encoded into direct memory on the logging
+ * thread, so the only heap objects a record leaves behind are short lived ones no matter how much is queued.  A writer
+ * thread of its own writes the bytes straight from the arena to the file.
+ *
+ * The arena is a fixed number of fixed size chunks allocated once.  Records are appended to the current chunk, which
+ * is handed to the writer thread whenever the writer is idle or the chunk is full, and the writer puts each chunk back
+ * on the free list once written.  A record that does not fit in the free space left is dropped and counted instead of
+ * blocking the caller.  A warning of how many were dropped is written ahead of the next record that fits, together
+ * with the arena's peak use and the slowest write since the last warning, so the file shows why it fell behind.
+ *
+ * Buffers are positioned through {@link Buffer} so a build on a newer JDK does not bind to the {@link ByteBuffer}
+ * overrides that Java 8 lacks.
+ */
+public class StagedFileHandler extends Handler {
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    static final int DEFAULT_CHUNKS = 64;
+
+    /**
+     * Follows {@link LogSink#DROPPED_MESSAGE} in a drop warning, formatted with the peak number of chunks in use, the
+     * number of chunks and the slowest write in milliseconds.
+     */
+    static final String ARENA_MESSAGE = " The arena peaked at %d of %d chunks and the slowest write took %d ms.";
+
+    /**
+     * The bytes a chunk may be left short by when a character does not fit at its end.
+     */
+    private static final int CHUNK_SLACK = 4;
+
+    /**
+     * Queued on close to wake the writer thread.  Never written.
+     */
+    private static final Chunk CLOSE = new Chunk(ByteBuffer.allocate(0));
+
+    private final String name;
+    private final String file;
+    private final int chunkSize;
+    private final int chunks;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> full;
+    private final CharsetEncoder encoder = DebugLogIndex.CHARSET.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    /**
+     * The longest a chunk took to write since the last drop warning, in nanoseconds.
+     */
+    private final AtomicLong slowest = new AtomicLong();
+    private final Thread thread;
+    private Chunk current = null;
+    private int peak = 0;
+    /**
+     * The number of dropped records already reported in the file.  Must hold the lock.
+     */
+    private long reported = 0L;
+    private volatile boolean closed = false;
+
+    /**
+     * Allocates an arena of the default size and starts the writer thread, which opens the file.
+     *
+     * @param name The name of this handler, used for the writer thread.
+     * @param file The file to append to.
+     */
+    public StagedFileHandler(final String name, final String file) {
+        this(name, file, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS);
+    }
+
+    /**
+     * Allocates an arena and starts the writer thread, which opens the file.  If opening fails the error is reported
+     * and records are discarded.
+     *
+     * @param name      The name of this handler, used for the writer thread.
+     * @param file      The file to append to.
+     * @param chunkSize The size of each chunk in bytes.
+     * @param chunks    The number of chunks in the arena.
+     */
+    public StagedFileHandler(final String name, final String file, final int chunkSize, final int chunks) {
+        if (chunkSize <= CHUNK_SLACK) {
+            throw new IllegalArgumentException("chunkSize must be more than " + CHUNK_SLACK + "!");
+        }
+        if (chunks < 1) {
+            throw new IllegalArgumentException("chunks must be at least 1!");
+        }
+        this.name = name;
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.chunks = chunks;
+        free = new ArrayBlockingQueue<Chunk>(chunks);
+        // Room for every chunk and the close marker, so handing a chunk over never fails.
+        full = new ArrayBlockingQueue<Chunk>(chunks + 1);
+        final ByteBuffer arena = ByteBuffer.allocateDirect(chunkSize * chunks);
+        for (int i = 0; i < chunks; i++) {
+            ((Buffer) arena).limit((i + 1) * chunkSize).position(i * chunkSize);
+            free.add(new Chunk(arena.slice()));
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Logging-Staged-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the size of the arena in bytes.
+     *
+     * @return the size of the arena in bytes.
+     */
+    public long getArenaSize() {
+        return (long) chunkSize * chunks;
+    }
+
+    /**
+     * Returns the size of each chunk of the arena in bytes.
+     *
+     * @return the size of each chunk of the arena in bytes.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the number of chunks holding records not yet written.
+     *
+     * @return the number of chunks holding records not yet written.
+     */
+    public int getChunksInUse() {
+        return chunks - free.size();
+    }
+
+    /**
+     * Returns the most chunks that have been in use at once.
+     *
+     * @return the most chunks that have been in use at once.
+     */
+    public int getPeakChunksInUse() {
+        lock.lock();
+        try {
+            return peak;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the share of the arena holding records not yet written.
+     *
+     * @return the share of the arena in use, from 0 to 1.
+     */
+    public double getUtilization() {
+        return (double) getChunksInUse() / chunks;
+    }
+
+    /**
+     * Returns the number of bytes written to the file.
+     *
+     * @return the number of bytes written to the file.
+     */
+    public long getBytesWritten() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of records dropped because the arena was full.
+     *
+     * @return the number of records dropped because the arena was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Formats and encodes a record into the arena.  Never blocks on the file.
+     *
+     * @param record the LogRecord.
+     */
+    @Override
+    public void publish(final LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            final long lost = dropped.get() - reported;
+            final String text;
+            try {
+                text = lost > 0 ? formatDropped(lost) + getFormatter().format(record) : getFormatter().format(record);
+            } catch (RuntimeException e) {
+                reportError(null, e, ErrorManager.FORMAT_FAILURE);
+                return;
+            }
+            if (!stage(text)) {
+                final long total = dropped.incrementAndGet();
+                if (LoggingEvents.enabled) {
+                    LoggingEvents.backpressure(name, chunks, total, 0L);
+                }
+                return;
+            }
+            if (lost > 0) {
+                reported += lost;
+                slowest.set(0L);
+            }
+            current.records++;
+            if (full.isEmpty() || current.buffer.remaining() <= CHUNK_SLACK) {
+                handOff();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Formats the warning of dropped records.  Must hold the lock.
+     */
+    private String formatDropped(final long lost) {
+        final String message = String.format(LogSink.DROPPED_MESSAGE, name, lost)
+                + String.format(ARENA_MESSAGE, peak, chunks, TimeUnit.NANOSECONDS.toMillis(slowest.get()));
+        return getFormatter().format(new LogRecord(Level.WARNING, message));
+    }
+
+    /**
+     * Encodes text into the arena if there is room for it.  Must hold the lock.
+     *
+     * @return false if there was no room.
+     */
+    private boolean stage(final String text) {
+        final long needed = (long) Math.ceil(text.length() * (double) encoder.maxBytesPerChar());
+        final long available = (current == null ? 0L : current.buffer.remaining())
+                + (long) free.size() * (chunkSize - CHUNK_SLACK);
+        if (needed > available) {
+            return false;
+        }
+        final CharBuffer in = CharBuffer.wrap(text);
+        while (true) {
+            if (current == null) {
+                // Only publishers take chunks and they hold the lock, so the check above guarantees one.
+                current = free.poll();
+                peak = Math.max(peak, chunks - free.size());
+            }
+            final CoderResult result = encoder.encode(in, current.buffer, true);
+            if (!result.isOverflow()) {
+                break;
+            }
+            handOff();
+        }
+        encoder.reset();
+        return true;
+    }
+
+    /**
+     * Hands the current chunk to the writer thread.  Must hold the lock.
+     */
+    private void handOff() {
+        if (current != null && current.buffer.position() > 0) {
+            full.offer(current);
+            current = null;
+        }
+    }
+
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            handOff();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting records, writes out everything already staged with a warning of any records dropped since the
+     * last one and closes the file.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final long lost = dropped.get() - reported;
+            if (lost > 0) {
+                try {
+                    if (stage(formatDropped(lost))) {
+                        reported += lost;
+                        slowest.set(0L);
+                    }
+                } catch (RuntimeException e) {
+                    reportError(null, e, ErrorManager.FORMAT_FAILURE);
+                }
+            }
+            handOff();
+        } finally {
+            lock.unlock();
+        }
+        full.offer(CLOSE);
+        try {
+            thread.join(LogSink.CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        final FileChannel channel;
+        try {
+            channel = new FileOutputStream(file, true).getChannel();
+        } catch (IOException e) {
+            reportError("Could not open " + file, e, ErrorManager.OPEN_FAILURE);
+            closed = true;
+            return;
+        }
+        try {
+            while (true) {
+                final Chunk chunk;
+                try {
+                    chunk = full.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (chunk == CLOSE) {
+                    return;
+                }
+                write(channel, chunk);
+                if (full.isEmpty()) {
+                    // Pick up whatever was staged while writing rather than wait for the next record.
+                    flush();
+                }
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                reportError(null, e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    private void write(final FileChannel channel, final Chunk chunk) {
+        final long start = System.nanoTime();
+        final ByteBuffer buffer = chunk.buffer;
+        ((Buffer) buffer).flip();
+        final int bytes = buffer.remaining();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            written.addAndGet(bytes);
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.WRITE_FAILURE);
+        }
+        final long took = System.nanoTime() - start;
+        if (took > slowest.get()) {
+            // Only this thread raises it.
+            slowest.set(took);
+        }
+        if (LoggingEvents.enabled) {
+            LoggingEvents.fileWrite(name, chunk.records, bytes, start);
+        }
+        ((Buffer) buffer).clear();
+        chunk.records = 0;
+        free.offer(chunk);
+    }
+
+    /**
+     * A slice of the arena and the number of records that end in it.
+     */
+    private static class Chunk {
+
+        final ByteBuffer buffer;
+        int records = 0;
+
+        Chunk(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package com.dumptruckman.minecraft.util;
+
+import java.util.logging.Level;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The flight recorder events behind {@link LoggingEvents}.  Keeps {@link LoggingEvents#enabled} in step with the
+ * running recordings.
+ */
+class FlightRecorderEvents implements LoggingEvents.Recorder, FlightRecorderListener {
+
+    FlightRecorderEvents() {
+        // The event classes register themselves when first used, which is only ever during a recording.
+        FlightRecorder.addListener(this);
+    }
+
+    @Override
+    public void recorderInitialized(final FlightRecorder recorder) {
+        update(recorder);
+    }
+
+    @Override
+    public void recordingStateChanged(final Recording recording) {
+        update(FlightRecorder.getFlightRecorder());
+    }
+
+    private static void update(final FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording recording : recorder.getRecordings()) {
+            running |= recording.getState() == RecordingState.RUNNING;
+        }
+        LoggingEvents.enabled = running;
+    }
+
+    @Override
+    public void record(final Level level, final String pattern, final long formatNanos) {
+        final RecordEvent event = new RecordEvent();
+        if (event.shouldCommit()) {
+            event.level = level.getName();
+            event.pattern = pattern;
+            event.formatTime = formatNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void sinkWrite(final String sink, final int records, final long startNanos) {
+        final SinkWriteEvent event = new SinkWriteEvent();
+        if (event.shouldCommit()) {
+            event.sink = sink;
+            event.records = records;
+            event.writeTime = System.nanoTime() - startNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void fileWrite(final String writer, final int records, final long bytes, final long startNanos) {
+        final FileWriteEvent event = new FileWriteEvent();
+        if (event.shouldCommit()) {
+            event.writer = writer;
+            event.records = records;
+            event.bytes = bytes;
+            event.writeTime = System.nanoTime() - startNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void backpressure(final String sink, final int capacity, final long dropped, final long waitNanos) {
+        final BackpressureEvent event = new BackpressureEvent();
+        if (event.shouldCommit()) {
+            event.sink = sink;
+            event.capacity = capacity;
+            event.dropped = dropped;
+            event.waitTime = waitNanos;
+            event.commit();
+        }
+    }
+
+    @Name("dumptruckman.logging.Record")
+    @Label("Log Record")
+    @Category("Logging")
+    @Description("A record formatted by Logging")
+    static class RecordEvent extends Event {
+        @Label("Level")
+        String level;
+        @Label("Pattern")
+        String pattern;
+        @Label("Format Time")
+        @Timespan
+        long formatTime;
+    }
+
+    @Name("dumptruckman.logging.SinkWrite")
+    @Label("Log Sink Write")
+    @Category("Logging")
+    @Description("A batch of records written by a log sink's writer thread")
+    @StackTrace(false)
+    static class SinkWriteEvent extends Event {
+        @Label("Sink")
+        String sink;
+        @Label("Records")
+        int records;
+        @Label("Write Time")
+        @Timespan
+        long writeTime;
+    }
+
+    @Name("dumptruckman.logging.FileWrite")
+    @Label("Log File Write")
+    @Category("Logging")
+    @Description("A batch of records encoded and written to debug log files by a writer thread")
+    @StackTrace(false)
+    static class FileWriteEvent extends Event {
+        @Label("Writer")
+        String writer;
+        @Label("Records")
+        int records;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Write Time")
+        @Timespan
+        long writeTime;
+    }
+
+    @Name("dumptruckman.logging.Backpressure")
+    @Label("Log Sink Backpressure")
+    @Category("Logging")
+    @Description("A record that found a log sink's queue full and either waited for room or was dropped")
+    static class BackpressureEvent extends Event {
+        @Label("Sink")
+        String sink;
+        @Label("Capacity")
+        int capacity;
+        @Label("Dropped")
+        long dropped;
+        @Label("Wait Time")
+        @Timespan
+        long waitTime;
+    }
+}
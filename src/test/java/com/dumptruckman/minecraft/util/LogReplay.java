@@ -0,0 +1,432 @@
+package com.dumptruckman.minecraft.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays the traffic recorded in a debug log through {@link Logging} so configurations can be compared against a
+ * real workload.
+ *
+ * A log in the {@link DebugLog.LogFormatter} layout is read into records keeping each one's level, its offset from the
+ * start of the log and its message shape, with numbers turned into format arguments so replaying exercises formatting
+ * the way the original calls did.  The log only has times to the second, so records within a second are spread evenly
+ * over it.  Debug output is written to the debug log as INFO with the debug prefix; such records are replayed at a
+ * debug level of the caller's choosing.  Stack traces are replayed as a throwable with as many frames.
+ *
+ * Replaying splits the records across a number of threads and calls {@link Logging} at the recorded times sped up by
+ * a factor, measuring the time spent in each call, how far calls fell behind schedule and how long records took to
+ * reach a {@link LogSink}.  Run through {@link TestPerformance#testReplay()}.
+ */
+public class LogReplay {
+
+    static final double MAX_SPEED = 100D;
+
+    private static final Pattern RECORD = Pattern.compile("^(.{" + DebugLogIndex.DATE_FORMAT.length()
+                                                          + "}) \\[([^\\]]+)\\] (.*)$");
+    private static final Pattern DEBUG_TAG = Pattern.compile("^\\[[^\\]]*" + Pattern.quote(Logging.ORIGINAL_DEBUG)
+                                                             + "\\] ");
+    private static final Pattern TAG = Pattern.compile("^\\[[^\\]]*\\] ");
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+");
+
+    /**
+     * One record to replay.
+     */
+    static class Entry {
+
+        final long offsetMillis;
+        final Level level;
+        final boolean debug;
+        final String pattern;
+        final Object[] args;
+        final Throwable thrown;
+        final int length;
+
+        Entry(final long offsetMillis, final Level level, final boolean debug, final String pattern,
+              final Object[] args, final Throwable thrown, final int length) {
+            this.offsetMillis = offsetMillis;
+            this.level = level;
+            this.debug = debug;
+            this.pattern = pattern;
+            this.args = args;
+            this.thrown = thrown;
+            this.length = length;
+        }
+
+        void log() {
+            if (thrown != null) {
+                // Logging's own methods take no throwable; the intercepted logger does the same prefixing.  Its
+                // log(Level, ...) methods would drop debug and config levels below the logger's own level.
+                final LogRecord record = new LogRecord(level, String.format(pattern, args));
+                record.setLoggerName(Logging.getLogger().getName());
+                record.setThrown(thrown);
+                Logging.getLogger().log(record);
+            } else {
+                Logging.log(level, pattern, args);
+            }
+        }
+    }
+
+    /**
+     * Thrown only to give a replayed record a stack trace of the recorded depth.
+     */
+    static class ReplayedException extends Exception {
+
+        ReplayedException(final int frames) {
+            super("replayed", null, false, true);
+            final StackTraceElement[] trace = new StackTraceElement[frames];
+            for (int i = 0; i < frames; i++) {
+                trace[i] = new StackTraceElement(LogReplay.class.getName(), "frame" + i, "LogReplay.java", i + 1);
+            }
+            setStackTrace(trace);
+        }
+    }
+
+    final List<Entry> entries;
+
+    private LogReplay(final List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Reads a debug log.
+     *
+     * @param log     The log file.
+     * @param debugAs The level to replay debug output logged as {@link Level#INFO} at, one of {@link Level#FINE},
+     *                {@link Level#FINER} or {@link Level#FINEST}.
+     * @return the records of the log, ready to replay.
+     * @throws IOException if the log cannot be read.
+     */
+    static LogReplay load(final File log, final Level debugAs) throws IOException {
+        final SimpleDateFormat date = new SimpleDateFormat(DebugLogIndex.DATE_FORMAT);
+        final List<Long> times = new ArrayList<Long>();
+        final List<String[]> records = new ArrayList<String[]>();
+        final List<Integer> traces = new ArrayList<Integer>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log),
+                                                                               DebugLogIndex.CHARSET));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final Matcher matcher = RECORD.matcher(line);
+                long millis = Long.MIN_VALUE;
+                if (matcher.matches()) {
+                    try {
+                        millis = date.parse(matcher.group(1)).getTime();
+                    } catch (ParseException e) {
+                        millis = Long.MIN_VALUE;
+                    }
+                }
+                if (millis == Long.MIN_VALUE) {
+                    // A stack trace line belongs to the record before it.
+                    if (!traces.isEmpty()) {
+                        traces.set(traces.size() - 1, traces.get(traces.size() - 1) + 1);
+                    }
+                    continue;
+                }
+                times.add(millis);
+                records.add(new String[] {matcher.group(2), matcher.group(3)});
+                traces.add(0);
+            }
+        } finally {
+            reader.close();
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>(records.size());
+        final Map<String, String> patterns = new HashMap<String, String>();
+        final long first = times.isEmpty() ? 0L : times.get(0);
+        int start = 0;
+        while (start < records.size()) {
+            // Spread the records of each second evenly over it.
+            int end = start;
+            while (end < records.size() && times.get(end).longValue() == times.get(start).longValue()) {
+                end++;
+            }
+            for (int i = start; i < end; i++) {
+                final long offset = times.get(start) - first + (i - start) * 1000L / (end - start);
+                entries.add(parse(offset, records.get(i)[0], records.get(i)[1], traces.get(i), debugAs, patterns));
+            }
+            start = end;
+        }
+        return new LogReplay(entries);
+    }
+
+    private static Entry parse(final long offset, final String levelName, final String text, final int traceLines,
+                               final Level debugAs, final Map<String, String> patterns) {
+        Level level;
+        try {
+            level = Level.parse(levelName);
+        } catch (IllegalArgumentException e) {
+            level = Level.INFO;
+        }
+        String message = text;
+        final Matcher debugTag = DEBUG_TAG.matcher(message);
+        final boolean debug = debugTag.find();
+        if (debug) {
+            message = message.substring(debugTag.end());
+            if (level.intValue() >= Level.INFO.intValue()) {
+                // Written by a version that logged debug output to the file as INFO.
+                level = debugAs;
+            }
+        } else {
+            final Matcher tag = TAG.matcher(message);
+            if (tag.find()) {
+                message = message.substring(tag.end());
+            }
+        }
+        final StringBuilder pattern = new StringBuilder();
+        final List<Object> args = new ArrayList<Object>();
+        final Matcher number = NUMBER.matcher(message);
+        int last = 0;
+        while (number.find()) {
+            pattern.append(message.substring(last, number.start()).replace("%", "%%")).append("%d");
+            try {
+                args.add(Long.parseLong(number.group()));
+            } catch (NumberFormatException e) {
+                args.add(new BigInteger(number.group()));
+            }
+            last = number.end();
+        }
+        pattern.append(message.substring(last).replace("%", "%%"));
+        String shape = patterns.get(pattern.toString());
+        if (shape == null) {
+            shape = pattern.toString();
+            patterns.put(shape, shape);
+        }
+        // The first trace line is the throwable itself.
+        final Throwable thrown = traceLines > 0 ? new ReplayedException(traceLines - 1) : null;
+        return new Entry(offset, level, debug, shape, args.toArray(), thrown, text.length());
+    }
+
+    /**
+     * Prints the level, rate and message shape distributions of the loaded log.
+     *
+     * @param out Where to print.
+     */
+    void describe(final PrintStream out) {
+        if (entries.isEmpty()) {
+            out.println("No records.");
+            return;
+        }
+        final long span = entries.get(entries.size() - 1).offsetMillis + 1000L;
+        final Map<String, Integer> levels = new LinkedHashMap<String, Integer>();
+        final Map<String, Integer> shapes = new HashMap<String, Integer>();
+        final Map<Long, Integer> seconds = new HashMap<Long, Integer>();
+        final long[] lengths = new long[entries.size()];
+        int traces = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            increment(levels, entry.debug ? "DEBUG" : entry.level.getName());
+            increment(shapes, entry.pattern);
+            final Long second = entry.offsetMillis / 1000L;
+            seconds.put(second, seconds.containsKey(second) ? seconds.get(second) + 1 : 1);
+            lengths[i] = entry.length;
+            if (entry.thrown != null) {
+                traces++;
+            }
+        }
+        Arrays.sort(lengths);
+        out.println(String.format("%d records over %.1f s, %.1f/s mean, %d/s peak", entries.size(), span / 1000D,
+                                  entries.size() * 1000D / span, Collections.max(seconds.values())));
+        for (Map.Entry<String, Integer> level : levels.entrySet()) {
+            out.println(String.format("  %-8s %8d  %5.1f%%", level.getKey(), level.getValue(),
+                                      level.getValue() * 100D / entries.size()));
+        }
+        out.println(String.format("Message length p50 %d, p99 %d, max %d; %d with stack traces",
+                                  percentile(lengths, 0.5), percentile(lengths, 0.99), lengths[lengths.length - 1],
+                                  traces));
+        final List<Map.Entry<String, Integer>> common = new ArrayList<Map.Entry<String, Integer>>(shapes.entrySet());
+        Collections.sort(common, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(final Map.Entry<String, Integer> a, final Map.Entry<String, Integer> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        out.println(shapes.size() + " message shapes, most common:");
+        for (Map.Entry<String, Integer> shape : common.subList(0, Math.min(5, common.size()))) {
+            out.println(String.format("  %8d  %s", shape.getValue(), shape.getKey()));
+        }
+    }
+
+    private static void increment(final Map<String, Integer> counts, final String key) {
+        final Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Replays the loaded records through {@link Logging}, which must already be initialized and configured as it is
+     * to be measured.
+     *
+     * @param threads The number of threads to log from.  Records are dealt out to them in turn.
+     * @param speed   How many times faster than recorded to replay, from 1 to {@value #MAX_SPEED}.
+     * @return the measurements.
+     * @throws InterruptedException if interrupted while waiting for the threads.
+     */
+    Result replay(final int threads, final double speed) throws InterruptedException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1!");
+        }
+        if (speed < 1D || speed > MAX_SPEED) {
+            throw new IllegalArgumentException("speed must be between 1 and " + MAX_SPEED + "!");
+        }
+        final Probe probe = new Probe(entries.size());
+        final LogSink sink = new LogSink("replay", probe, entries.size() + 1);
+        Logging.SINKS.add(sink);
+        final long[][] calls = new long[threads][];
+        final long[][] lag = new long[threads][];
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100L);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            final Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final int count = (entries.size() - thread + threads - 1) / threads;
+                        calls[thread] = new long[count];
+                        lag[thread] = new long[count];
+                        for (int n = 0, i = thread; i < entries.size(); n++, i += threads) {
+                            final Entry entry = entries.get(i);
+                            final long due = begin + (long) (TimeUnit.MILLISECONDS.toNanos(entry.offsetMillis) / speed);
+                            for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                                LockSupport.parkNanos(wait);
+                            }
+                            final long start = System.nanoTime();
+                            entry.log();
+                            calls[thread][n] = System.nanoTime() - start;
+                            lag[thread][n] = start - due;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "Logging-Replay-" + t);
+            worker.start();
+        }
+        done.await();
+        final long logged = System.nanoTime();
+        Logging.removeSink(sink);
+        return new Result(entries.size(), threads, speed, logged - begin, probe.arrived - begin, merge(calls),
+                          merge(lag), Arrays.copyOf(probe.delays, probe.received), sink.getDroppedCount());
+    }
+
+    private static long[] merge(final long[][] parts) {
+        int size = 0;
+        for (long[] part : parts) {
+            size += part == null ? 0 : part.length;
+        }
+        final long[] all = new long[size];
+        int position = 0;
+        for (long[] part : parts) {
+            if (part != null) {
+                System.arraycopy(part, 0, all, position, part.length);
+                position += part.length;
+            }
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    static long percentile(final long[] sorted, final double p) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1))];
+    }
+
+    /**
+     * Notes when each record reaches a sink.  Only ever called from the sink's writer thread.
+     */
+    static class Probe extends Handler {
+
+        final long[] delays;
+        int received = 0;
+        long arrived = 0L;
+
+        Probe(final int capacity) {
+            delays = new long[capacity];
+        }
+
+        @Override
+        public void publish(final LogRecord record) {
+            if (received < delays.length) {
+                delays[received++] = System.currentTimeMillis() - record.getMillis();
+            }
+            arrived = System.nanoTime();
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() throws SecurityException { }
+    }
+
+    /**
+     * What a replay measured.
+     */
+    static class Result {
+
+        final int records;
+        final int threads;
+        final double speed;
+        final long loggingNanos;
+        final long deliveryNanos;
+        final long[] callNanos;
+        final long[] lagNanos;
+        final long[] deliveryMillis;
+        final long dropped;
+
+        Result(final int records, final int threads, final double speed, final long loggingNanos,
+               final long deliveryNanos, final long[] callNanos, final long[] lagNanos, final long[] deliveryMillis,
+               final long dropped) {
+            this.records = records;
+            this.threads = threads;
+            this.speed = speed;
+            this.loggingNanos = loggingNanos;
+            this.deliveryNanos = deliveryNanos;
+            this.callNanos = callNanos;
+            this.lagNanos = lagNanos;
+            this.deliveryMillis = deliveryMillis;
+            Arrays.sort(this.deliveryMillis);
+            this.dropped = dropped;
+        }
+
+        void print(final PrintStream out) {
+            out.println(String.format("Replayed %d records on %d threads at %.0fx in %.2f s, %.0f records/s",
+                                      records, threads, speed, loggingNanos / 1e9, records / (loggingNanos / 1e9)));
+            out.println(String.format("Call time      p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us",
+                                      percentile(callNanos, 0.5) / 1e3, percentile(callNanos, 0.99) / 1e3,
+                                      percentile(callNanos, 0.999) / 1e3,
+                                      callNanos.length == 0 ? 0D : callNanos[callNanos.length - 1] / 1e3));
+            out.println(String.format("Schedule lag   p50 %8.1f ms  p99 %8.1f ms  max %8.1f ms",
+                                      percentile(lagNanos, 0.5) / 1e6, percentile(lagNanos, 0.99) / 1e6,
+                                      lagNanos.length == 0 ? 0D : lagNanos[lagNanos.length - 1] / 1e6));
+            out.println(String.format("To sink        p50 %8d ms  p99 %8d ms  max %8d ms; %d of %d delivered, "
+                                      + "%d dropped, last after %.2f s",
+                                      percentile(deliveryMillis, 0.5), percentile(deliveryMillis, 0.99),
+                                      deliveryMillis.length == 0 ? 0L : deliveryMillis[deliveryMillis.length - 1],
+                                      deliveryMillis.length, records, dropped, deliveryNanos / 1e9));
+        }
+    }
+}
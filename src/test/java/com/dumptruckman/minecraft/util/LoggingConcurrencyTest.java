@@ -0,0 +1,255 @@
+package com.dumptruckman.minecraft.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.dumptruckman.minecraft.util.LoggingTest.CollectingHandler;
+import org.junit.Test;
+
+/**
+ * Logs from many threads at once, optionally while another thread reconfigures or shuts down {@link Logging}, and
+ * checks that no record is lost or duplicated, that each thread's records arrive in order and that nothing throws.
+ */
+public class LoggingConcurrencyTest extends LoggingTestBase {
+
+    static final int THREADS = 8;
+    static final int RECORDS = 2000;
+    static final Level[] DEBUG_LEVELS = {Level.FINE, Level.FINER, Level.FINEST};
+    static final Pattern RECORD = Pattern.compile("([ID])(\\d+)-(\\d+)$");
+    static final Pattern DROPPED = Pattern.compile("^bounded dropped (\\d+) records");
+    static final Pattern DEBUG_DROPPED = Pattern.compile("-Debug dropped (\\d+) records");
+
+    final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+
+    @Test
+    public void testConcurrentLogging() throws Exception {
+        Logging.setDebugLevel(3);
+        final CollectingHandler collector = new CollectingHandler();
+        final LogSink sink = new LogSink("stress", collector, THREADS * RECORDS * 2);
+        Logging.SINKS.add(sink);
+        runLoggers(null);
+        Logging.removeSink(sink);
+        Logging.setDebugLevel(0);
+
+        assertExactlyOnceInOrder(messages(console.records), 'I');
+        assertExactlyOnceInOrder(messages(console.records), 'D');
+        assertEquals(0, sink.getDroppedCount());
+        assertExactlyOnceInOrder(messages(collector.records), 'I');
+        assertExactlyOnceInOrder(messages(collector.records), 'D');
+        // The debug log never makes logging wait; it may drop records but notes every one it drops.
+        final List<String> lines = Files.readAllLines(new File(Logging.getDebugFileName(plugin)).toPath(),
+                                                      DebugLogIndex.CHARSET);
+        assertNoDuplicatesInOrder(lines, 'I');
+        assertNoDuplicatesInOrder(lines, 'D');
+        long reported = 0L;
+        int notes = 0;
+        for (String line : lines) {
+            final Matcher matcher = DEBUG_DROPPED.matcher(line);
+            if (matcher.find()) {
+                reported += Long.parseLong(matcher.group(1));
+                notes++;
+            }
+        }
+        assertEquals(THREADS * RECORDS * 2, lines.size() - notes + reported);
+    }
+
+    @Test
+    public void testBoundedSinkAccountsForEveryRecord() throws Exception {
+        final CollectingHandler collector = new CollectingHandler();
+        final LogSink sink = Logging.addSink("bounded", collector);
+        runLoggers(null);
+        Logging.removeSink(sink);
+
+        assertExactlyOnceInOrder(messages(console.records), 'I');
+        final List<String> received = messages(collector.records);
+        assertNoDuplicatesInOrder(received, 'I');
+        // Every drop is reported to the handler in a warning of its own.
+        long reported = 0L;
+        int warnings = 0;
+        for (String message : received) {
+            final Matcher matcher = DROPPED.matcher(message);
+            if (matcher.find()) {
+                reported += Long.parseLong(matcher.group(1));
+                warnings++;
+            }
+        }
+        assertEquals(sink.getDroppedCount(), reported);
+        assertEquals(THREADS * RECORDS, received.size() - warnings + sink.getDroppedCount());
+    }
+
+    @Test
+    public void testReconfigureWhileLogging() throws Exception {
+        runLoggers(new Runnable() {
+            final Random random = new Random(0);
+            final DebugLog.Mode[] modes = DebugLog.Mode.values();
+            LogSink sink = null;
+
+            @Override
+            public void run() {
+                Logging.setDebugLevel(random.nextInt(4));
+                DebugLog.setMode(modes[random.nextInt(modes.length)]);
+                if (random.nextInt(4) == 0) {
+                    Logging.closeDebugLog();
+                }
+                if (sink == null) {
+                    sink = Logging.addSink("reconfigure", new CollectingHandler());
+                } else {
+                    Logging.removeSink(sink);
+                    sink = null;
+                }
+            }
+        });
+        Logging.setDebugLevel(0);
+
+        assertExactlyOnceInOrder(messages(console.records), 'I');
+        assertNoDuplicatesInOrder(messages(console.records), 'D');
+        assertNull(Logging.debugLog);
+        assertTrue(DebugLog.isClosed());
+    }
+
+    @Test
+    public void testShutdownWhileLogging() throws Exception {
+        runLoggers(new Runnable() {
+            final Random random = new Random(0);
+
+            @Override
+            public void run() {
+                if (random.nextBoolean()) {
+                    Logging.shutdown();
+                    assertNull("Debug log reopened during shutdown", Logging.debugLog);
+                } else {
+                    Logging.init(plugin);
+                    Logging.setDebugLevel(3);
+                    Logging.addSink("shutdown", new CollectingHandler());
+                }
+            }
+        });
+        Logging.shutdown();
+
+        assertExactlyOnceInOrder(messages(console.records), 'I');
+        assertNoDuplicatesInOrder(messages(console.records), 'D');
+        assertNull(Logging.debugLog);
+        assertTrue(DebugLog.isClosed());
+    }
+
+    /**
+     * Runs {@link #THREADS} threads that each log {@link #RECORDS} info and debug records while the given task, if
+     * any, runs over and over on another thread.
+     */
+    void runLoggers(final Runnable reconfigure) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < RECORDS; i++) {
+                            Logging.info("I%d-%d", thread, i);
+                            Logging.log(DEBUG_LEVELS[i % DEBUG_LEVELS.length], "D%d-%d", thread, i);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }));
+        }
+        if (reconfigure != null) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (running.get()) {
+                            reconfigure.run();
+                            Thread.yield();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        assertTrue("Logging threads did not finish", done.await(2, TimeUnit.MINUTES));
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.peek());
+        }
+    }
+
+    static List<String> messages(final Collection<LogRecord> records) {
+        final List<String> messages = new ArrayList<String>();
+        synchronized (records) {
+            for (LogRecord record : records) {
+                messages.add(record.getMessage());
+            }
+        }
+        return messages;
+    }
+
+    static List<List<Integer>> byThread(final List<String> messages, final char kind) {
+        final List<List<Integer>> threads = new ArrayList<List<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            threads.add(new ArrayList<Integer>());
+        }
+        for (String message : messages) {
+            final Matcher matcher = RECORD.matcher(message);
+            if (matcher.find() && matcher.group(1).charAt(0) == kind) {
+                threads.get(Integer.parseInt(matcher.group(2))).add(Integer.parseInt(matcher.group(3)));
+            }
+        }
+        return threads;
+    }
+
+    static void assertExactlyOnceInOrder(final List<String> messages, final char kind) {
+        final List<List<Integer>> threads = byThread(messages, kind);
+        for (int t = 0; t < THREADS; t++) {
+            final List<Integer> received = threads.get(t);
+            assertEquals("Records lost or duplicated for thread " + t, RECORDS, received.size());
+            for (int i = 0; i < RECORDS; i++) {
+                assertEquals("Records out of order for thread " + t, i, received.get(i).intValue());
+            }
+        }
+    }
+
+    static void assertNoDuplicatesInOrder(final List<String> messages, final char kind) {
+        final List<List<Integer>> threads = byThread(messages, kind);
+        for (int t = 0; t < THREADS; t++) {
+            int last = -1;
+            for (int i : threads.get(t)) {
+                assertTrue("Record " + i + " duplicated or out of order for thread " + t, i > last);
+                last = i;
+            }
+        }
+    }
+}
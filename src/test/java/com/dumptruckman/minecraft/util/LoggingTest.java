@@ -3,19 +3,34 @@ package com.dumptruckman.minecraft.util;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 import com.dumptruckman.minecraft.util.Logging.InterceptedLogger;
 import org.bukkit.plugin.Plugin;
@@ -61,6 +76,7 @@ public class LoggingTest {
     @After
     public void tearDown() throws Exception {
         Logging.shutdown();
+        ((InterceptedLogger) Logging.getLogger()).logger.removeHandler(handler);
         //FileUtils.deleteFolder(new File("bin"));
     }
 
@@ -97,6 +113,10 @@ public class LoggingTest {
         assertNull(Logging.debugLog);
         assertTrue(DebugLog.isClosed());
         Logging.setDebugLevel(1);
+        assertNull(Logging.debugLog);
+        assertTrue(DebugLog.isClosed());
+        expectAnyInfo();
+        Logging.info(SIMPLE_MESSAGE);
         assertFalse(DebugLog.isClosed());
         assertEquals(DebugLog.getLoggerName(), plugin.getName());
         assertEquals(DebugLog.getFileName(), Logging.getDebugFileName(plugin));
@@ -124,11 +144,362 @@ public class LoggingTest {
     @Test
     public void testCloseDebugLog() throws Exception {
         Logging.setDebugLevel(3);
+        assertTrue(DebugLog.isClosed());
+        assertNotNull(Logging.getDebugLog());
         assertFalse(DebugLog.isClosed());
         Logging.closeDebugLog();
         assertTrue(DebugLog.isClosed());
     }
 
+    @Test
+    public void testSharedDebugWriter() throws Exception {
+        assertSame(SharedDebugWriter.getSharedWriter(), SharedDebugWriter.getSharedWriter());
+        DebugLog.setMode(DebugLog.Mode.SHARED);
+        Logging.setDebugLevel(1);
+        assertNull(Logging.getDebugLog().fileHandler);
+        expectAnyInfo();
+        Logging.fine(SIMPLE_MESSAGE);
+        Logging.setDebugLevel(0);
+        final File file = new File(Logging.getDebugFileName(plugin));
+        final String expected = Logging.getDebugString(SIMPLE_MESSAGE);
+        for (int i = 0; i < 50 && !contains(file, expected); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(contains(file, expected));
+        Logging.shutdown();
+        assertEquals(DebugLog.ORIGINAL_MODE, DebugLog.getMode());
+    }
+
+    @Test
+    public void testSharedDebugWriterHandOver() throws Exception {
+        final File file = new File("bin/test/shared.log");
+        final SharedDebugWriter.FileHandle handle = new SharedDebugWriter.FileHandle(file.getPath());
+        handle.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                return record.getMessage() + "\n";
+            }
+        });
+        final Handler first = SharedDebugWriter.getSharedWriter();
+        handle.publish(new LogRecord(Level.INFO, "before"));
+        SharedDebugWriter.release();
+        // Everything queued is written before release returns.
+        assertEquals("before\n", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+        try {
+            first.publish(new LogRecord(Level.INFO, "refused"));
+            fail("A stopped writer accepted a record");
+        } catch (IllegalStateException ignore) { }
+        handle.publish(new LogRecord(Level.INFO, "after"));
+        assertNotSame(first, SharedDebugWriter.getSharedWriter());
+        handle.close();
+        SharedDebugWriter.release();
+        assertEquals("before\nafter\n", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void testSharedDebugWriterStoppedOnRetry() throws Exception {
+        SharedDebugWriter.release();
+        // Stands in for writers of other copies that are stopped as soon as they are found.
+        final Handler stopped = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                throw new IllegalStateException("stopped");
+            }
+
+            @Override
+            public void flush() { }
+
+            @Override
+            public void close() throws SecurityException { }
+        };
+        final Logger registry = Logger.getLogger(SharedDebugWriter.LOGGER_NAME);
+        registry.addHandler(stopped);
+        try {
+            final SharedDebugWriter.FileHandle handle = new SharedDebugWriter.FileHandle("bin/test/shared.log");
+            handle.setFormatter(new DebugLog.LogFormatter());
+            final List<Exception> errors = new ArrayList<Exception>();
+            handle.setErrorManager(new ErrorManager() {
+                @Override
+                public synchronized void error(String msg, Exception ex, int code) {
+                    errors.add(ex);
+                }
+            });
+            handle.publish(new LogRecord(Level.INFO, SIMPLE_MESSAGE));
+            assertEquals(1, errors.size());
+            assertTrue(errors.get(0) instanceof IllegalStateException);
+        } finally {
+            registry.removeHandler(stopped);
+        }
+    }
+
+    static boolean contains(final File file, final String text) throws Exception {
+        return file.exists() && new String(Files.readAllBytes(file.toPath()), "UTF-8").contains(text);
+    }
+
+    @Test
+    public void testThrottle() throws Exception {
+        final LogThrottle throttle = new LogThrottle();
+        throttle.configure(100, 1000, 0);
+        assertTrue(throttle.isEnabled());
+        assertFalse(throttle.record(0, 200, LogThrottle.MAX_LEVEL));
+        assertEquals(LogThrottle.MAX_LEVEL, throttle.getCap());
+        long now = 1000;
+        for (int level = LogThrottle.MAX_LEVEL - 1; level >= 0; level--) {
+            assertTrue(throttle.record(now, now + 200, LogThrottle.MAX_LEVEL));
+            assertEquals(level, throttle.getCap());
+            now += 1200;
+        }
+        assertTrue(throttle.record(now, now + 200, LogThrottle.MAX_LEVEL));
+        assertEquals(0, throttle.getCap());
+        now += 1200;
+        // Over half the budget holds the current level.
+        assertTrue(throttle.record(now, now + 60, LogThrottle.MAX_LEVEL));
+        assertEquals(0, throttle.getCap());
+        now += 1060;
+        assertTrue(throttle.record(now, now + 10, LogThrottle.MAX_LEVEL));
+        assertEquals(1, throttle.getCap());
+        // A long idle window counts as a single window.
+        now += 10000;
+        assertTrue(throttle.record(now, now + 300, LogThrottle.MAX_LEVEL));
+        assertEquals(2, throttle.getCap());
+
+        // The cap starts from the configured level, so the first window over budget drops level 1 output.
+        throttle.configure(100, 1000, 0);
+        assertTrue(throttle.record(1000, 1200, 1));
+        assertEquals(0, throttle.getCap());
+        assertTrue(throttle.record(2200, 2210, 1));
+        assertEquals(1, throttle.getCap());
+        assertTrue(throttle.record(3210, 3220, 1));
+        assertEquals(1, throttle.getCap());
+        // At level 0 there is nothing to step down or restore.
+        assertTrue(throttle.record(4220, 4420, 0));
+        assertEquals(0, throttle.getCap());
+        throttle.restore();
+        assertEquals(LogThrottle.MAX_LEVEL, throttle.getCap());
+    }
+
+    @Test
+    public void testEffectiveDebugLevel() throws Exception {
+        Logging.setDebugLevel(3);
+        assertEquals(3, Logging.getEffectiveDebugLevel());
+        Logging.setDebugTimeBudget(1, 1, TimeUnit.MINUTES);
+        assertEquals(3, Logging.getEffectiveDebugLevel());
+        Logging.setDebugLevel(1);
+        assertEquals(1, Logging.getEffectiveDebugLevel());
+        Logging.shutdown();
+        assertFalse(Logging.THROTTLE.isEnabled());
+    }
+
+    @Test
+    public void testDebugLogSetDebugLevel() throws Exception {
+        final CollectingHandler collector = new CollectingHandler();
+        final LogSink sink = Logging.addSink("levels", collector);
+        expectAnyInfo();
+        DebugLog.setDebugLevel(3);
+        assertEquals(LevelActions.DEBUG, Logging.levelActions.get(Level.FINEST));
+        Logging.finest(SIMPLE_MESSAGE);
+        DebugLog.setDebugLevel(0);
+        assertEquals(LevelActions.DROP, Logging.levelActions.get(Level.FINE));
+        Logging.fine(SIMPLE_MESSAGE);
+        Logging.removeSink(sink);
+        assertEquals(1, collector.records.size());
+        assertEquals(Level.FINEST, collector.records.get(0).getLevel());
+    }
+
+    @Test
+    public void testLevelActions() throws Exception {
+        final Level trace = new Level("TRACE", 450) { };
+        final Level notice = new Level("NOTICE", 850) { };
+        final LevelActions off = new LevelActions(0, false);
+        assertEquals(LevelActions.DROP, off.get(Level.ALL));
+        assertEquals(LevelActions.DROP, off.get(trace));
+        assertEquals(LevelActions.DROP, off.get(Level.CONFIG));
+        assertEquals(LevelActions.PASS, off.get(notice));
+        assertEquals(LevelActions.PASS, off.get(Level.OFF));
+        final LevelActions finer = new LevelActions(2, true);
+        assertEquals(LevelActions.DROP, finer.get(Level.FINEST));
+        assertEquals(LevelActions.DEBUG, finer.get(trace));
+        assertEquals(LevelActions.DEBUG, finer.get(Level.FINE));
+        assertEquals(LevelActions.INFO, finer.get(Level.CONFIG));
+        assertEquals(LevelActions.PASS, finer.get(Level.INFO));
+
+        final CollectingHandler collector = new CollectingHandler();
+        final LogSink sink = Logging.addSink("levels", collector);
+        expectAnyInfo();
+        Logging.log(trace, SIMPLE_MESSAGE);
+        Logging.setDebugLevel(2);
+        Logging.log(trace, SIMPLE_MESSAGE);
+        Logging.setShowingConfig(false);
+        Logging.config(SIMPLE_MESSAGE);
+        TestHandler.level = notice;
+        Logging.log(notice, SIMPLE_MESSAGE);
+        Logging.removeSink(sink);
+        assertEquals(2, collector.records.size());
+        assertSame(trace, collector.records.get(0).getLevel());
+        assertEquals(Logging.getDebugString(SIMPLE_MESSAGE), collector.records.get(0).getMessage());
+        assertSame(notice, collector.records.get(1).getLevel());
+    }
+
+    @Test
+    public void testIndexedDebugLog() throws Exception {
+        DebugLog.setMode(DebugLog.Mode.INDEXED);
+        Logging.setDebugLevel(1);
+        final DebugLog debugLog = Logging.getDebugLog();
+        final long start = 1500000000000L;
+        for (int i = 0; i < 600; i++) {
+            final LogRecord record = new LogRecord(i % 100 == 0 ? Level.WARNING : Level.INFO, SIMPLE_MESSAGE + i);
+            record.setMillis(start + i * 50L);
+            debugLog.log(record);
+        }
+        Logging.setDebugLevel(0);
+        final DebugLogIndex index = new DebugLogIndex(new File(Logging.getDebugFileName(plugin)));
+        assertTrue(index.getBlockCount() > 1);
+        final List<String> second = index.query(start + 10000, start + 10999, Level.ALL);
+        assertEquals(20, second.size());
+        assertTrue(second.get(0).endsWith(SIMPLE_MESSAGE + 200));
+        assertTrue(second.get(19).endsWith(SIMPLE_MESSAGE + 219));
+        final List<String> warnings = index.query(start, start + 60000, Level.WARNING);
+        assertEquals(6, warnings.size());
+        assertTrue(warnings.get(5).endsWith(SIMPLE_MESSAGE + 500));
+    }
+
+    @Test
+    public void testIndexedOutOfOrderRecords() throws Exception {
+        DebugLog.setMode(DebugLog.Mode.INDEXED);
+        Logging.setDebugLevel(1);
+        final DebugLog debugLog = Logging.getDebugLog();
+        final long start = 1500000000000L;
+        // The block's first record is not its earliest.
+        final LogRecord late = new LogRecord(Level.INFO, SIMPLE_MESSAGE + "late");
+        late.setMillis(start + 5000L);
+        debugLog.log(late);
+        for (int i = 0; i < 9; i++) {
+            final LogRecord record = new LogRecord(Level.INFO, SIMPLE_MESSAGE + i);
+            record.setMillis(start + i * 10L);
+            debugLog.log(record);
+        }
+        Logging.setDebugLevel(0);
+        final DebugLogIndex index = new DebugLogIndex(new File(Logging.getDebugFileName(plugin)));
+        assertEquals(1, index.getBlockCount());
+        final List<String> early = index.query(start, start + 999, Level.ALL);
+        assertEquals(9, early.size());
+        assertTrue(early.get(8).endsWith(SIMPLE_MESSAGE + 8));
+        assertEquals(1, index.query(start + 5000, start + 5999, Level.ALL).size());
+    }
+
+    @Test
+    public void testIndexedDebugLevels() throws Exception {
+        DebugLog.setMode(DebugLog.Mode.INDEXED);
+        expectAnyInfo();
+        Logging.setDebugLevel(3);
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            Logging.fine(SIMPLE_MESSAGE + i);
+            Logging.finer(SIMPLE_MESSAGE + i);
+            Logging.finest(SIMPLE_MESSAGE + i);
+        }
+        Logging.setDebugLevel(0);
+        final DebugLogIndex index = new DebugLogIndex(new File(Logging.getDebugFileName(plugin)));
+        assertTrue(index.getBlockCount() > 1);
+        final long end = System.currentTimeMillis();
+        final List<String> finer = index.query(start, end, Level.FINER);
+        assertEquals(600, finer.size());
+        assertTrue(finer.get(0).contains("[FINE] " + Logging.getDebugString(SIMPLE_MESSAGE + 0)));
+        assertTrue(finer.get(599).contains("[FINER] " + Logging.getDebugString(SIMPLE_MESSAGE + 299)));
+        assertEquals(300, index.query(start, end, Level.FINE).size());
+        assertEquals(900, index.query(start, end, Level.FINEST).size());
+        assertEquals(0, index.query(start, end, Level.INFO).size());
+    }
+
+    @Test
+    public void testStagedDebugLog() throws Exception {
+        DebugLog.setMode(DebugLog.Mode.STAGED);
+        Logging.setDebugLevel(1);
+        final StagedFileHandler staged = (StagedFileHandler) Logging.getDebugLog().getHandler();
+        assertEquals(StagedFileHandler.DEFAULT_CHUNK_SIZE * (long) StagedFileHandler.DEFAULT_CHUNKS,
+                     staged.getArenaSize());
+        for (int i = 0; i < 1000; i++) {
+            Logging.getDebugLog().log(Level.INFO, SIMPLE_MESSAGE + i);
+        }
+        Logging.setDebugLevel(0);
+        assertEquals(0, staged.getChunksInUse());
+        assertEquals(0, staged.getDroppedCount());
+        assertTrue(staged.getPeakChunksInUse() > 0);
+        final List<String> lines = Files.readAllLines(new File(Logging.getDebugFileName(plugin)).toPath(),
+                                                      DebugLogIndex.CHARSET);
+        assertEquals(1000, lines.size());
+        assertTrue(lines.get(999).endsWith(SIMPLE_MESSAGE + 999));
+        assertEquals(new File(Logging.getDebugFileName(plugin)).length(), staged.getBytesWritten());
+    }
+
+    @Test
+    public void testStagedRecordsSpanAndOverflowChunks() throws Exception {
+        final File file = new File("bin/test/staged.log");
+        final StagedFileHandler staged = new StagedFileHandler("test", file.getPath(), 16, 64);
+        staged.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                return record.getMessage();
+            }
+        });
+        final StringBuilder spanning = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            spanning.append((char) ('a' + i % 26));
+        }
+        staged.publish(new LogRecord(Level.INFO, spanning.toString()));
+        staged.publish(new LogRecord(Level.INFO, spanning.toString() + spanning + spanning + spanning + spanning));
+        staged.close();
+        assertEquals(1, staged.getDroppedCount());
+        assertEquals(0, staged.getChunksInUse());
+        final String written = new String(Files.readAllBytes(file.toPath()), DebugLogIndex.CHARSET);
+        final String warning = spanning + String.format(LogSink.DROPPED_MESSAGE, "test", 1);
+        assertTrue(written, written.startsWith(warning));
+        // The warning says how full the arena got and how slow the writer was.
+        assertTrue(written, written.substring(warning.length())
+                .matches(StagedFileHandler.ARENA_MESSAGE.replace(".", "\\.").replace("%d", "\\d+")));
+    }
+
+    @Test
+    public void testCompressedDebugLog() throws Exception {
+        DebugLog.setMode(DebugLog.Mode.COMPRESSED);
+        Logging.setDebugLevel(1);
+        for (int i = 0; i < 1000; i++) {
+            Logging.getDebugLog().log(Level.INFO, SIMPLE_MESSAGE + i);
+        }
+        final File file = new File(Logging.getDebugFileName(plugin) + DebugLog.COMPRESSED_EXTENSION);
+        // Readable up to the last batch while still open, as after a crash.
+        for (int i = 0; i < 50 && !gunzip(file).endsWith(SIMPLE_MESSAGE + 999 + "\n"); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(gunzip(file).endsWith(SIMPLE_MESSAGE + 999 + "\n"));
+        Logging.setDebugLevel(0);
+        final String log = gunzip(file);
+        assertEquals(1000, log.split("\n").length);
+        assertTrue(file.length() * 5 < log.length());
+    }
+
+    /**
+     * Decompresses as much of a gzip file as can be read, ignoring a missing end.
+     */
+    static String gunzip(final File file) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!file.exists()) {
+            return "";
+        }
+        final InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            final byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+        } catch (EOFException e) {
+            // The file has not been finished.
+        } finally {
+            in.close();
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
     @Test
     public void testGetPrefixedMessage() throws Exception {
         assertEquals("[" + NAME + "] " + SIMPLE_MESSAGE, Logging.getPrefixedMessage(SIMPLE_MESSAGE, false));
@@ -145,6 +516,17 @@ public class LoggingTest {
         assertEquals("[" + NAME + Logging.ORIGINAL_DEBUG + "] " + SIMPLE_MESSAGE, Logging.getDebugString(SIMPLE_MESSAGE));
     }
 
+    /**
+     * Makes {@link TestHandler} accept any message, as long as the console gets it at {@link Level#INFO}.
+     */
+    static void expectAnyInfo() {
+        TestHandler.tester = new RecordTester() {
+            @Override
+            public void test(LogRecord record) { }
+        };
+        TestHandler.level = Level.INFO;
+    }
+
     static class TestHandler extends Handler {
 
         static Level level;
@@ -182,6 +564,91 @@ public class LoggingTest {
         public abstract void test(final LogRecord record);
     }
 
+    static class CollectingHandler extends Handler {
+
+        final List<LogRecord> records = Collections.synchronizedList(new ArrayList<LogRecord>());
+        volatile boolean closed = false;
+
+        @Override
+        public void publish(LogRecord record) {
+            if (isLoggable(record)) {
+                records.add(record);
+            }
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() throws SecurityException {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testSinkLevel() throws Exception {
+        final CollectingHandler collector = new CollectingHandler();
+        final LogSink sink = Logging.addSink("test", collector);
+        sink.setLevel(Level.WARNING);
+        expectAnyInfo();
+        Logging.info(SIMPLE_MESSAGE);
+        TestHandler.level = Level.WARNING;
+        Logging.warning(SIMPLE_MESSAGE);
+        Logging.removeSink(sink);
+        assertTrue(collector.closed);
+        assertEquals(1, collector.records.size());
+        assertEquals(Level.WARNING, collector.records.get(0).getLevel());
+        assertEquals(Logging.getPrefixedMessage(SIMPLE_MESSAGE, false), collector.records.get(0).getMessage());
+    }
+
+    @Test
+    public void testSinkDebugLevel() throws Exception {
+        final CollectingHandler collector = new CollectingHandler();
+        final LogSink sink = Logging.addSink("test", collector);
+        sink.setLevel(Level.FINER);
+        expectAnyInfo();
+        Logging.setDebugLevel(3);
+        Logging.fine(SIMPLE_MESSAGE);
+        Logging.finer(SIMPLE_MESSAGE);
+        Logging.finest(SIMPLE_MESSAGE);
+        final LogRecord intercepted = new LogRecord(Level.FINER, SIMPLE_MESSAGE);
+        intercepted.setLoggerName(Logging.getLogger().getName());
+        Logging.getLogger().log(intercepted);
+        Logging.config(SIMPLE_MESSAGE);
+        Logging.removeSink(sink);
+        assertEquals(4, collector.records.size());
+        assertEquals(Level.FINE, collector.records.get(0).getLevel());
+        assertEquals(Level.FINER, collector.records.get(1).getLevel());
+        assertEquals(Logging.getDebugString(SIMPLE_MESSAGE), collector.records.get(1).getMessage());
+        assertEquals(Level.FINER, collector.records.get(2).getLevel());
+        assertEquals(Level.CONFIG, collector.records.get(3).getLevel());
+    }
+
+    @Test
+    public void testSlowSinkDoesNotBlock() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final LogSink slow = Logging.addSink("slow", new CollectingHandler() {
+            @Override
+            public void publish(LogRecord record) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) { }
+                super.publish(record);
+            }
+        });
+        final CollectingHandler collector = new CollectingHandler();
+        final LogSink fast = Logging.addSink("fast", collector);
+        expectAnyInfo();
+        for (int i = 0; i < 10; i++) {
+            Logging.info(SIMPLE_MESSAGE);
+        }
+        Logging.removeSink(fast);
+        assertEquals(10, collector.records.size());
+        release.countDown();
+        Logging.removeSink(slow);
+        assertEquals(0, slow.getDroppedCount());
+    }
+
     public void testLog() throws Exception {
         Logging.setDebugLevel(3);
         TestHandler.tester = new RecordTester() {
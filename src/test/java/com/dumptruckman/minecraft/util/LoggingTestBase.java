@@ -0,0 +1,48 @@
+package com.dumptruckman.minecraft.util;
+
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import com.dumptruckman.minecraft.util.Logging.InterceptedLogger;
+import com.dumptruckman.minecraft.util.LoggingTest.CollectingHandler;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Initializes {@link Logging} for a mocked plugin with an empty data folder before each test and shuts it down after.
+ * What reaches the server's logger is collected in {@link #console} rather than printed.
+ */
+public abstract class LoggingTestBase {
+
+    Plugin plugin;
+    Logger server;
+    final CollectingHandler console = new CollectingHandler();
+
+    @Before
+    public void setUpLogging() throws Exception {
+        plugin = mock(Plugin.class);
+        when(plugin.getName()).thenReturn(LoggingTest.NAME);
+        when(plugin.getDescription()).thenReturn(new PluginDescriptionFile(LoggingTest.NAME, LoggingTest.VERSION,
+                                                                           getClass().getName()));
+        FileUtils.deleteFolder(new File("bin"));
+        final File testFolder = new File("bin/test/server/plugins/Logging-Test");
+        testFolder.mkdirs();
+        when(plugin.getDataFolder()).thenReturn(testFolder);
+        Logging.init(plugin);
+        server = ((InterceptedLogger) Logging.getLogger()).logger;
+        server.setUseParentHandlers(false);
+        server.addHandler(console);
+    }
+
+    @After
+    public void tearDownLogging() throws Exception {
+        Logging.shutdown();
+        server.removeHandler(console);
+        server.setUseParentHandlers(true);
+    }
+}
@@ -0,0 +1,163 @@
+package com.dumptruckman.minecraft.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link Logging} against a slow console with a tiny time budget and checks that the effective debug level steps
+ * down to nothing and back up again, announcing every step.
+ */
+public class LoggingThrottleTest extends LoggingTestBase {
+
+    static final long BUDGET_MILLIS = 20L;
+    static final long WINDOW_MILLIS = 200L;
+    /**
+     * How long the slow console takes per record, well over the budget of a whole window.  The budget leaves room for
+     * a pause in the fast console without stepping down again.
+     */
+    static final long SLOW_MILLIS = 50L;
+    static final long DEADLINE_MILLIS = 10000L;
+
+    volatile boolean slow = true;
+    final Handler slowConsole = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            if (slow) {
+                try {
+                    Thread.sleep(SLOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() throws SecurityException { }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server.addHandler(slowConsole);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.removeHandler(slowConsole);
+    }
+
+    @Test
+    public void testThrottleStepsDownAndRestores() throws Exception {
+        Logging.setDebugLevel(3);
+        Logging.setDebugTimeBudget(BUDGET_MILLIS, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(LevelActions.DEBUG, Logging.levelActions.get(Level.FINEST));
+
+        // FINE reaches the slow console at every level but 0, so every window goes over budget until then.
+        final List<Integer> seen = new ArrayList<Integer>();
+        seen.add(Logging.getEffectiveDebugLevel());
+        long deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        while (Logging.getEffectiveDebugLevel() > 0 && System.currentTimeMillis() < deadline) {
+            Logging.fine(LoggingTest.SIMPLE_MESSAGE);
+            final int level = Logging.getEffectiveDebugLevel();
+            if (level != seen.get(seen.size() - 1)) {
+                seen.add(level);
+            }
+        }
+        assertEquals("[3, 2, 1, 0]", seen.toString());
+        assertEquals(3, Logging.getDebugLevel());
+        assertEquals(LevelActions.DROP, Logging.levelActions.get(Level.FINEST));
+        assertEquals(LevelActions.DROP, Logging.levelActions.get(Level.FINE));
+        assertEquals(LevelActions.PASS, Logging.levelActions.get(Level.INFO));
+
+        slow = false;
+        deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        while (Logging.getEffectiveDebugLevel() < 3 && System.currentTimeMillis() < deadline) {
+            Logging.fine(LoggingTest.SIMPLE_MESSAGE);
+            Thread.sleep(WINDOW_MILLIS / 10);
+        }
+        assertEquals(3, Logging.getEffectiveDebugLevel());
+        assertEquals(LevelActions.DEBUG, Logging.levelActions.get(Level.FINEST));
+
+        final List<String> announced = new ArrayList<String>();
+        synchronized (console.records) {
+            for (LogRecord record : console.records) {
+                if (record.getMessage().contains("time budget")) {
+                    assertEquals(record.getMessage().contains("over") ? Level.WARNING : Level.INFO,
+                                 record.getLevel());
+                    announced.add(record.getMessage());
+                }
+            }
+        }
+        assertEquals(6, announced.size());
+        assertTrue(announced.get(0).endsWith("limiting debug output to level 2."));
+        assertTrue(announced.get(1).endsWith("limiting debug output to level 1."));
+        assertTrue(announced.get(2).endsWith("dropping debug output."));
+        assertTrue(announced.get(3).endsWith("debug output restored to level 1."));
+        assertTrue(announced.get(4).endsWith("debug output restored to level 2."));
+        assertTrue(announced.get(5).endsWith("debug output restored to level 3."));
+    }
+
+    @Test
+    public void testThrottleAtDebugLevelOne() throws Exception {
+        Logging.setDebugLevel(1);
+        Logging.setDebugTimeBudget(BUDGET_MILLIS, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+
+        // The first window over budget drops FINE; the cap does not start from 3.
+        long deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        while (Logging.getEffectiveDebugLevel() > 0 && System.currentTimeMillis() < deadline) {
+            Logging.fine(LoggingTest.SIMPLE_MESSAGE);
+        }
+        assertEquals(0, Logging.getEffectiveDebugLevel());
+        assertEquals(0, Logging.THROTTLE.getCap());
+        assertEquals(LevelActions.DROP, Logging.levelActions.get(Level.FINE));
+
+        // Only debug output is dropped; the debug log still receives warnings.
+        slow = false;
+        Logging.warning(LoggingTest.SIMPLE_MESSAGE);
+        final File debugLog = new File(Logging.getDebugFileName(plugin));
+        deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        while (!LoggingTest.contains(debugLog, "[WARNING]") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertTrue(LoggingTest.contains(debugLog, "[WARNING]"));
+
+        deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        while (Logging.getEffectiveDebugLevel() < 1 && System.currentTimeMillis() < deadline) {
+            Logging.fine(LoggingTest.SIMPLE_MESSAGE);
+            Thread.sleep(WINDOW_MILLIS / 10);
+        }
+        assertEquals(1, Logging.getEffectiveDebugLevel());
+        // A few more quiet windows never raise the cap above the configured level.
+        for (int i = 0; i < 30; i++) {
+            Logging.fine(LoggingTest.SIMPLE_MESSAGE);
+            Thread.sleep(WINDOW_MILLIS / 10);
+        }
+        assertEquals(1, Logging.THROTTLE.getCap());
+
+        final List<String> announced = new ArrayList<String>();
+        synchronized (console.records) {
+            for (LogRecord record : console.records) {
+                if (record.getMessage().contains("time budget")) {
+                    announced.add(record.getMessage());
+                }
+            }
+        }
+        assertEquals(2, announced.size());
+        assertTrue(announced.get(0).endsWith("dropping debug output."));
+        assertTrue(announced.get(1).endsWith("debug output restored to level 1."));
+    }
+}
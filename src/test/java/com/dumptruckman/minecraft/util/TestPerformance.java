@@ -0,0 +1,77 @@
+package com.dumptruckman.minecraft.util;
+
+import java.io.File;
+import java.util.logging.Level;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Benchmarks that are too slow or too noisy for the regular build.  Excluded from surefire, run explicitly with
+ * {@code mvn test -Dtest=TestPerformance}.
+ */
+public class TestPerformance extends LoggingTestBase {
+
+    static final int ITERATIONS = 200;
+
+    @Before
+    public void setUp() throws Exception {
+        // Keep console output out of the measurements without collecting it.
+        console.setLevel(Level.OFF);
+        // Each test starts Logging itself.
+        Logging.shutdown();
+    }
+
+    @Test
+    public void testStartup() throws Exception {
+        long init = 0, enable = 0, first = 0, second = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            Logging.init(plugin);
+            init += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Logging.setDebugLevel(3);
+            enable += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Logging.fine("First record %d", i);
+            first += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Logging.fine("Second record %d", i);
+            second += System.nanoTime() - start;
+
+            Logging.shutdown();
+        }
+        report("init", init);
+        report("setDebugLevel(3)", enable);
+        report("first log call", first);
+        report("second log call", second);
+    }
+
+    /**
+     * Replays a real debug log, see {@link LogReplay}.  Skipped unless a log is given:
+     * {@code mvn test -Dtest=TestPerformance#testReplay -Dreplay.log=debug.log}, optionally with
+     * {@code -Dreplay.threads=4 -Dreplay.speed=10 -Dreplay.mode=FILE -Dreplay.debugLevel=3 -Dreplay.debugAs=FINE}.
+     */
+    @Test
+    public void testReplay() throws Exception {
+        final String log = System.getProperty("replay.log");
+        Assume.assumeTrue("replay.log is not set", log != null);
+        final Level debugAs = Level.parse(System.getProperty("replay.debugAs", "FINE"));
+        final LogReplay replay = LogReplay.load(new File(log), debugAs);
+        replay.describe(System.out);
+        Logging.init(plugin);
+        DebugLog.setMode(DebugLog.Mode.valueOf(System.getProperty("replay.mode", DebugLog.ORIGINAL_MODE.name())));
+        Logging.setDebugLevel(Integer.getInteger("replay.debugLevel", 3));
+        final LogReplay.Result result = replay.replay(Integer.getInteger("replay.threads", 4),
+                                                      Double.parseDouble(System.getProperty("replay.speed", "10")));
+        result.print(System.out);
+    }
+
+    static void report(final String name, final long totalNanos) {
+        System.out.println(String.format("%-20s %10.1f us/op", name, totalNanos / 1000D / ITERATIONS));
+    }
+}
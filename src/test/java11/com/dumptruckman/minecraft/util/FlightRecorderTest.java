@@ -0,0 +1,215 @@
+package com.dumptruckman.minecraft.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import com.dumptruckman.minecraft.util.LoggingTest.CollectingHandler;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Checks the flight recorder events of {@link LoggingEvents} and uses the JDK's own events to check that logging never
+ * pins a virtual thread.  Built and run only on Java 11 and later.
+ */
+public class FlightRecorderTest extends LoggingTestBase {
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        assertTrue(LoggingEvents.awaitRecorder(10, TimeUnit.SECONDS));
+        assertFalse(LoggingEvents.enabled);
+        final Recording recording = new Recording();
+        recording.enable("dumptruckman.logging.Record");
+        recording.enable("dumptruckman.logging.SinkWrite");
+        recording.start();
+        try {
+            assertTrue(LoggingEvents.enabled);
+            final LogSink sink = Logging.addSink("events", new CollectingHandler());
+            Logging.info(LoggingTest.SIMPLE_MESSAGE);
+            Logging.removeSink(sink);
+        } finally {
+            recording.stop();
+        }
+        assertFalse(LoggingEvents.enabled);
+        final File dump = new File("bin/test/events.jfr");
+        recording.dump(dump.toPath());
+        recording.close();
+        final Set<String> events = new HashSet<String>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            events.add(event.getEventType().getName());
+            if (event.getEventType().getName().equals("dumptruckman.logging.Record")) {
+                assertEquals(LoggingTest.SIMPLE_MESSAGE, event.getString("pattern"));
+            } else {
+                assertEquals("events", event.getString("sink"));
+                assertEquals(1, event.getInt("records"));
+            }
+        }
+        assertTrue(events.contains("dumptruckman.logging.Record"));
+        assertTrue(events.contains("dumptruckman.logging.SinkWrite"));
+    }
+
+    @Test
+    public void testFileWriteAndBackpressureEvents() throws Exception {
+        assertTrue(LoggingEvents.awaitRecorder(10, TimeUnit.SECONDS));
+        final Recording recording = new Recording();
+        recording.enable("dumptruckman.logging.FileWrite");
+        recording.enable("dumptruckman.logging.Backpressure");
+        recording.start();
+        try {
+            DebugLog.setMode(DebugLog.Mode.SHARED);
+            Logging.setDebugLevel(3);
+            for (int i = 0; i < 10; i++) {
+                Logging.fine(LoggingTest.ARGS_MESSAGE, "shared", i, "");
+            }
+            Logging.setDebugLevel(0);
+            // Returns once the shared writer has written everything.
+            SharedDebugWriter.release();
+
+            final LogSink sink = new LogSink("blocking", new Callable<Handler>() {
+                @Override
+                public Handler call() {
+                    return new SlowHandler();
+                }
+            }, 1, true);
+            // One record being written and one queued leave the third waiting.
+            for (int i = 0; i < 3; i++) {
+                sink.publish(new LogRecord(Level.INFO, LoggingTest.SIMPLE_MESSAGE));
+            }
+            sink.close();
+        } finally {
+            recording.stop();
+        }
+        final File dump = new File("bin/test/writes.jfr");
+        recording.dump(dump.toPath());
+        recording.close();
+        long bytes = 0L;
+        int records = 0;
+        boolean waited = false;
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            if (event.getEventType().getName().equals("dumptruckman.logging.FileWrite")) {
+                assertEquals(SharedDebugWriter.LOGGER_NAME, event.getString("writer"));
+                bytes += event.getLong("bytes");
+                records += event.getInt("records");
+            } else if (event.getEventType().getName().equals("dumptruckman.logging.Backpressure")) {
+                assertEquals("blocking", event.getString("sink"));
+                assertEquals(0L, event.getLong("dropped"));
+                waited |= event.getDuration("waitTime").toNanos() > 0L;
+            }
+        }
+        assertEquals(10, records);
+        assertEquals(new File(Logging.getDebugFileName(plugin)).length(), bytes);
+        assertTrue(waited);
+    }
+
+    /**
+     * Takes long enough over each record for a small queue to fill.
+     */
+    static class SlowHandler extends Handler {
+        @Override
+        public void publish(LogRecord record) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignore) { }
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() throws SecurityException { }
+    }
+
+    @Test
+    public void testNoVirtualThreadPinned() throws Exception {
+        ExecutorService executor = null;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            // Virtual threads need Java 21.
+        }
+        Assume.assumeTrue("Virtual threads are not available", executor != null);
+        final int threads = 8;
+        final int records = 20;
+        final AtomicInteger published = new AtomicInteger();
+        // Parks the virtual thread, which records a pinned event if a monitor is held.
+        final Handler blocking = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                published.incrementAndGet();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ignore) { }
+            }
+
+            @Override
+            public void flush() { }
+
+            @Override
+            public void close() throws SecurityException { }
+        };
+        server.addHandler(blocking);
+        final Recording recording = new Recording();
+        recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+        recording.start();
+        try {
+            for (DebugLog.Mode mode : DebugLog.Mode.values()) {
+                DebugLog.setMode(mode);
+                // The first record to arrive opens the debug log.
+                Logging.setDebugLevel(3);
+                final List<Future<?>> tasks = new ArrayList<Future<?>>();
+                for (int i = 0; i < threads; i++) {
+                    tasks.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int j = 0; j < records; j++) {
+                                Logging.info(LoggingTest.ARGS_MESSAGE, "blocking", j, "");
+                                Logging.fine(LoggingTest.SIMPLE_MESSAGE);
+                                Logging.finest(LoggingTest.SIMPLE_MESSAGE);
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> task : tasks) {
+                    task.get(1, TimeUnit.MINUTES);
+                }
+                Logging.setDebugLevel(0);
+            }
+        } finally {
+            recording.stop();
+            executor.shutdown();
+            server.removeHandler(blocking);
+        }
+        assertEquals(DebugLog.Mode.values().length * threads * records * 3, published.get());
+        final File dump = new File("bin/test/pinned.jfr");
+        recording.dump(dump.toPath());
+        recording.close();
+        final List<RecordedEvent> pinned = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            // This library's own events are recorded too.
+            if (event.getEventType().getName().equals("jdk.VirtualThreadPinned")) {
+                pinned.add(event);
+            }
+        }
+        assertTrue("Virtual threads pinned while logging: " + pinned, pinned.isEmpty());
+    }
+}